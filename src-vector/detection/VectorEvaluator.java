@@ -0,0 +1,117 @@
+package detection;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Runs the cascade on one window per vector lane, with the Vector API.
+ *
+ * Only cascades whose trees are all stumps (a single node, with two leaves) are supported, as OpenCV's
+ * haarcascade_frontalface_default is: every lane then walks the same nodes, and only the leaf value differs. For each
+ * node, the corners of the rectangles are gathered from the integral image for all lanes at once, the sums and the
+ * comparison are computed lane-wise, and the leaf values are blended into the stage sums. Windows failing a stage are
+ * masked off; the batch stops when none is left.
+ *
+ * Each lane performs the operations of ScaledCascade.depth, on the same types and in the same order (int corner sums,
+ * float weighted areas truncated to integers, double normalization, float stage sums), so the depths are identical. The
+ * few steps computed on doubles instead (truncation, choice of the leaf value) are exact, and avoid conversions which
+ * are not compiled to vector instructions everywhere.
+ *
+ * This class needs the jdk.incubator.vector module, so it lives in its own source root, src-vector, compiled against the
+ * classes of src with --add-modules jdk.incubator.vector onto the same classpath. It is only loaded through
+ * BatchEvaluator.get: without it, the detector evaluates windows one by one.
+ */
+final class VectorEvaluator extends BatchEvaluator {
+	/* Species with the same number of lanes, for the double, int and float computations. They must be constants for
+	 * the vector operations to be compiled to vector instructions. */
+	private static final VectorSpecies<Double> dspecies = DoubleVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Integer> ispecies = VectorSpecies.of(int.class, VectorShape.forBitSize(32 * dspecies.length()));
+	private static final VectorSpecies<Float> fspecies = VectorSpecies.of(float.class, ispecies.vectorShape());
+
+	private final Cascade cascade;
+
+	VectorEvaluator(Cascade cascade) {
+		if (!cascade.stumps)
+			throw new IllegalArgumentException("Only cascades of stumps can be vectorized");
+		if (dspecies.length() < 2)
+			throw new IllegalArgumentException("No vector of several doubles on this platform");
+		this.cascade = cascade;
+	}
+
+	/** 1.5*2^52: adding then subtracting it rounds a double of magnitude below 2^51 to an integer. */
+	private static final double ROUND = 6755399441055744.0;
+
+	/**
+	 * Rounds each lane toward zero, like a cast to int does (the values are far below 2^31). There is no such conversion
+	 * among the intrinsics of the Vector API on every platform, and the fallback is very slow, hence the arithmetic.
+	 */
+	private static DoubleVector truncate(DoubleVector x) {
+		DoubleVector a = x.abs();
+		DoubleVector r = a.add(ROUND).sub(ROUND);
+		/* r is the nearest integer: go down by one where it is above. */
+		r = r.sub(1.0, r.compare(VectorOperators.GT, a));
+		return r.lanewise(VectorOperators.NEG, x.compare(VectorOperators.LT, 0));
+	}
+
+	@Override
+	int lanes() {
+		return dspecies.length();
+	}
+
+	@Override
+	void depths(ScaledCascade level, int[] grayImage, int[] bases, double[] vnorms, int count, int[] depths) {
+		Cascade c = cascade;
+		int lanes = lanes();
+		/* Unused lanes evaluate the first window again, so that their reads stay inside the image. */
+		for (int k = count; k < lanes; k++) {
+			bases[k] = bases[0];
+			vnorms[k] = vnorms[0];
+		}
+		int[] off = level.rectOffsets;
+		double inv_area = level.inv_area;
+		DoubleVector vnorm = DoubleVector.fromArray(dspecies, vnorms, 0);
+		VectorMask<Float> active = fspecies.indexInRange(0, count);
+
+		for (int s = 0; s < c.nbStages; s++) {
+			FloatVector sum = FloatVector.zero(fspecies);
+			for (int t = c.stageTreeStart[s]; t < c.stageTreeStart[s + 1]; t++) {
+				int n = c.treeNodeStart[t];
+				/* The sum of the truncated weighted areas is an integer far below 2^31, held exactly by a double. */
+				DoubleVector rect_sum = DoubleVector.zero(dspecies);
+				for (int r = c.nodeRectStart[n]; r < c.nodeRectStart[n + 1]; r++) {
+					int o = 4 * r;
+					IntVector tl = IntVector.fromArray(ispecies, grayImage, off[o], bases, 0);
+					IntVector tr = IntVector.fromArray(ispecies, grayImage, off[o + 1], bases, 0);
+					IntVector bl = IntVector.fromArray(ispecies, grayImage, off[o + 2], bases, 0);
+					IntVector br = IntVector.fromArray(ispecies, grayImage, off[o + 3], bases, 0);
+					FloatVector area = (FloatVector) br.sub(bl).sub(tr).add(tl).convert(VectorOperators.I2F, 0);
+					DoubleVector weighted = (DoubleVector) area.mul(c.rectWeight[r]).convertShape(VectorOperators.F2D, dspecies, 0);
+					rect_sum = rect_sum.add(truncate(weighted));
+				}
+				DoubleVector rect_sum2 = rect_sum.mul(inv_area);
+				VectorMask<Double> left = rect_sum2.lt(vnorm.mul((double) c.nodeThreshold[n]));
+				/* The leaf values are floats: choosing them as doubles and converting back is exact. */
+				DoubleVector val = DoubleVector.broadcast(dspecies, c.nodeRightVal[n]).blend(c.nodeLeftVal[n], left);
+				sum = sum.add((FloatVector) val.convertShape(VectorOperators.D2F, fspecies, 0));
+			}
+			/* The windows whose sum does not exceed the stage threshold stop at this stage. */
+			VectorMask<Float> pass = sum.compare(VectorOperators.GT, c.stageThreshold[s]);
+			long failed = active.andNot(pass).toLong();
+			for (int k = 0; k < lanes; k++)
+				if ((failed & (1L << k)) != 0)
+					depths[k] = s;
+			active = active.and(pass);
+			if (!active.anyTrue())
+				return;
+		}
+		long passed = active.toLong();
+		for (int k = 0; k < lanes; k++)
+			if ((passed & (1L << k)) != 0)
+				depths[k] = c.nbStages;
+	}
+}
@@ -25,7 +25,7 @@ import javax.swing.ToolTipManager;
 import javax.swing.WindowConstants;
 import javax.swing.border.TitledBorder;
 
-import detection.Detector;
+import detection.DetectorConfig;
 
 /**
  * Contains the user interface, which initialises and runs the rest of the program.
@@ -132,7 +132,7 @@ public class Display implements ActionListener{
 	 * sets the parameters of Images and Shapes in the painter, according to user preferences.
 	 */
 	private void setGAParameters(){
-		Detector.baseScale = (float)(double)dss.getValue();
+		painter.setDetectorConfig(DetectorConfig.DEFAULT.withBaseScale((float)(double)dss.getValue()));
 		
 		Image.setParameters(SIZE,
 				(int)nss.getValue(),
@@ -0,0 +1,93 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of scoring results, evicting the least recently used entry when full.
+ * Counts hits and misses so that the hit ratio of a run can be reported.
+ * @param <K> key type, e.g. a GenomeKey
+ * @param <V> cached result type
+ */
+public class FitnessCache<K, V> {
+	private final LinkedHashMap<K, V> entries;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Creates an empty cache.
+	 * @param capacity maximum number of entries kept
+	 */
+	public FitnessCache(final int capacity){
+		//access order: iteration starts from the least recently used entry
+		entries = new LinkedHashMap<K, V>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest){
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Looks up a result, counting a hit or a miss.
+	 * @param key key
+	 * @return the cached result, or null
+	 */
+	public V get(K key){
+		V v = entries.get(key);
+		if (v == null){
+			misses++;
+		}
+		else{
+			hits++;
+		}
+		return v;
+	}
+
+	/**
+	 * Stores a result.
+	 * @param key key
+	 * @param value result
+	 */
+	public void put(K key, V value){
+		entries.put(key, value);
+	}
+
+	/**
+	 * Empties the cache, e.g. when the results it holds are no longer valid, and resets the counters.
+	 */
+	public void clear(){
+		entries.clear();
+		hits = 0;
+		misses = 0;
+	}
+
+	/**
+	 * @return number of lookups which found a result
+	 */
+	public long getHits(){
+		return hits;
+	}
+
+	/**
+	 * @return number of lookups which did not find a result
+	 */
+	public long getMisses(){
+		return misses;
+	}
+
+	/**
+	 * @return fraction of lookups which found a result, 0 if there was none
+	 */
+	public double getHitRatio(){
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double)hits/lookups;
+	}
+
+	/**
+	 * @return number of entries held
+	 */
+	public int size(){
+		return entries.size();
+	}
+}
@@ -0,0 +1,108 @@
+import java.util.Arrays;
+
+import detection.Detector;
+import detection.DetectorConfig;
+
+/**
+ * Decides how images are scored as the population improves.
+ * While the population is noise, a window's score is decided by the first few stages of the cascade, and a few widely
+ * spaced windows tell good images from bad ones as well as many overlapping ones. So a run goes through coarse levels:
+ * each one runs the first stages of the cascade on a sparser grid of windows (larger scale increment and window step).
+ * Once the best image passes most of the stages run on most windows, the next level is used, until the last one, which
+ * scores with the detector's own parameters and the whole cascade: the final portrait is judged on it.
+ * Scores computed at different levels are not comparable: the population is scored again on each change.
+ */
+public class FitnessSchedule {
+	/** Always scores with the whole cascade and the detector's own parameters. */
+	public static final FitnessSchedule FULL = new FitnessSchedule(0);
+	/**
+	 * A coarse-to-fine schedule, used by the GA only when set with Painter.setFitnessSchedule. Its levels were not tuned
+	 * for the quality of the final portrait: on a 100x100 canvas the first level scores about 4 windows on 3 stages, a
+	 * signal which tells little about the score of the full detector.
+	 */
+	public static final FitnessSchedule COARSE_TO_FINE = new FitnessSchedule(0.8)
+			.then(3, 1.3f, 0.1f)
+			.then(6, 1.2f, 0.08f)
+			.then(12, 1.1f, 0.05f);
+
+	private final double raiseAt;
+	//per coarse level: number of stages run, scale increment and window step
+	private final int[] stages;
+	private final float[] scaleInc;
+	private final float[] increment;
+
+	/**
+	 * Creates a schedule without coarse levels, to which levels are added with then().
+	 * @param raiseAt fraction of the best possible score (all the windows not pruned passing all the stages run) above
+	 * which the next level is used
+	 */
+	public FitnessSchedule(double raiseAt){
+		this(raiseAt, new int[0], new float[0], new float[0]);
+	}
+
+	private FitnessSchedule(double raiseAt, int[] stages, float[] scaleInc, float[] increment){
+		this.raiseAt = raiseAt;
+		this.stages = stages;
+		this.scaleInc = scaleInc;
+		this.increment = increment;
+	}
+
+	/**
+	 * Returns a copy of this schedule with one more coarse level, used after the existing ones.
+	 * The grid is never finer than the detector's own.
+	 * @param stages number of stages of the cascade run
+	 * @param scaleInc scale increment of the window size
+	 * @param increment shift of the window, in terms of percentage of the window size
+	 * @return the new schedule
+	 */
+	public FitnessSchedule then(int stages, float scaleInc, float increment){
+		if (stages < 1){
+			throw new IllegalArgumentException("At least one stage must be run: " + stages);
+		}
+		int n = this.stages.length;
+		int[] s = Arrays.copyOf(this.stages, n + 1);
+		float[] si = Arrays.copyOf(this.scaleInc, n + 1);
+		float[] inc = Arrays.copyOf(this.increment, n + 1);
+		s[n] = stages;
+		si[n] = scaleInc;
+		inc[n] = increment;
+		return new FitnessSchedule(raiseAt, s, si, inc);
+	}
+
+	/**
+	 * @return number of coarse levels, which is also the index of the last level: scoring with the full detector
+	 */
+	public int getLevelCount(){
+		return stages.length;
+	}
+
+	/**
+	 * Gives the detector scoring the images at a level.
+	 * @param full detector with the whole cascade and the parameters the final portrait is judged on
+	 * @param level level, from 0 to getLevelCount()
+	 * @return the detector
+	 */
+	public Detector getDetector(Detector full, int level){
+		if (level >= stages.length){
+			return full;
+		}
+		DetectorConfig config = full.getConfig();
+		config = config.withScaleInc(Math.max(scaleInc[level], config.getScaleInc()))
+				.withIncrement(Math.max(increment[level], config.getIncrement()));
+		return new Detector(full.getCascade().withStages(stages[level]), config, full.getParallelism());
+	}
+
+	/**
+	 * Gives the level to score with from now on.
+	 * @param level level used so far
+	 * @param bestScore score of the best image, at this level
+	 * @param windows number of windows of the scan which can add to the score (not pruned) for the best image, at this level
+	 * @return the level, level itself if it should not change
+	 */
+	public int getLevel(int level, double bestScore, int windows){
+		if (level >= stages.length || windows == 0 || bestScore < raiseAt*windows){
+			return level;
+		}
+		return level + 1;
+	}
+}
@@ -0,0 +1,47 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Identifies the genome of an Image by a SHA-256 digest of its shapes: type, points, colours and polarities, in order.
+ * Two images with equal keys draw the same picture, so they have the same fitness.
+ */
+public final class GenomeKey {
+	private final byte[] digest;
+	private final int hash;
+
+	/**
+	 * Computes the key of a list of shapes.
+	 * @param shapes the shapes of an image
+	 */
+	public GenomeKey(List<Shape> shapes){
+		MessageDigest md;
+		try{
+			md = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e){
+			throw new IllegalStateException("SHA-256 is not available", e); //every Java platform has it
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		for (Shape s : shapes){
+			buffer.clear();
+			s.writeGenome(buffer);
+			buffer.flip();
+			md.update(buffer);
+		}
+		digest = md.digest();
+		hash = ByteBuffer.wrap(digest).getInt();
+	}
+
+	@Override
+	public boolean equals(Object o){
+		return o instanceof GenomeKey && Arrays.equals(digest, ((GenomeKey)o).digest);
+	}
+
+	@Override
+	public int hashCode(){
+		return hash;
+	}
+}
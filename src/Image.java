@@ -1,8 +1,11 @@
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.util.*;
 
+import detection.ScanResult;
+
 /**
  * Represents a single image, defined by a list of shapes.
  */
@@ -20,6 +23,8 @@ public class Image {
 	//parameters which define this image in particular
 	private double fitness; //image fitness
 	private ArrayList<Shape> shapes; //stores shapes
+	private ScanResult scan; //detection result, for incremental rescoring of children
+	private GenomeKey key; //digest of the shapes, computed when first needed
 	
 	/**
 	 * Constructs a new, randomised image.
@@ -148,4 +153,52 @@ public class Image {
 	public void setFitness(double score){
 		fitness = score;
 	}
+
+	/**
+	 * @return the detection result this image's fitness was taken from, if any
+	 */
+	public ScanResult getScan(){
+		return scan;
+	}
+	
+	/**
+	 * sets this image's detection result, and its fitness to the result's score
+	 * @param scan detection result
+	 */
+	public void setScan(ScanResult scan){
+		this.scan = scan;
+		fitness = scan.getScore();
+	}
+	
+	/**
+	 * @return the key identifying this image's genome. Images with equal keys draw identically.
+	 */
+	public GenomeKey getGenomeKey(){
+		if (key == null){
+			key = new GenomeKey(shapes);
+		}
+		return key;
+	}
+	
+	/**
+	 * Finds where this image may be drawn differently from another one: the union of the bounds of the shapes, in both
+	 * images, which are not drawn identically. Pixels outside of it are the same in both images.
+	 * @param other the other image
+	 * @return the region where the drawn images may differ, or null if they are identical
+	 */
+	public Rectangle getChangedBounds(Image other){
+		Rectangle dirty = null;
+		for (int i=0; i<shapes.size(); i++){
+			Shape a = shapes.get(i);
+			Shape b = other.shapes.get(i);
+			if (!a.drawsSameAs(b)){
+				Rectangle r = a.getBounds().union(b.getBounds());
+				dirty = (dirty == null) ? r : dirty.union(r);
+			}
+		}
+		if (dirty != null){
+			dirty.grow(1, 1); //margin for rasterization at the edges of the shapes
+		}
+		return dirty;
+	}
 }
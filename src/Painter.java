@@ -1,3 +1,4 @@
+import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -10,7 +11,11 @@ import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
 import javax.swing.JLabel;
 
+import detection.BinaryCascade;
 import detection.Detector;
+import detection.DetectorConfig;
+import detection.ScanEstimate;
+import detection.ScanResult;
 
 /**
  * A Painter objects runs the main stages of the GA. Initialises and breeds population of images.
@@ -19,7 +24,15 @@ public class Painter {
 	private JLabel imageDisplay;
 	private ArrayList<Image> cands;
 	private ArrayList<Double> scores;
-	private Detector faceDet;
+	private Detector fullDet; //detector running the whole cascade
+	private Detector faceDet; //detector scoring the images, at the current level of the fitness schedule
+	private FitnessSchedule schedule = FitnessSchedule.FULL;
+	private int level; //level of the fitness schedule
+	private boolean sampled; //whether children are rejected on a sample of their detection windows when clearly worse than the population
+	private boolean keepIncumbent; //whether a child worse than the least fit image is discarded instead of replacing it
+	private int rejected; //children rejected before the end of their scan in this run
+	private FitnessCache<GenomeKey, ScanResult> fitnessCache; //detection results of the genomes scored in this run, null if not cached
+	private FitnessCache<PixelKey, ScanResult> pixelCache; //detection results of the images rendered in this run, null if not cached
 	private Random r;
 	
 	//Visual image
@@ -29,6 +42,9 @@ public class Painter {
 	private static int maxGen = 10000000; //maximum allowed number of generations
 	private static int viewPeriod = 100; //how often display image updates
 	private static int size = 100; //image size
+	private static int batchSize = 16; //number of initial candidates drawn and scored together, at most
+	private static int statsPeriod = 10000; //how often the scan statistics are printed, when the detector is instrumented
+	private static double sampleConfidence = 3; //width of the confidence interval of sampled scores, in standard deviations
 	private int pop; //population size
 
 	/**
@@ -36,21 +52,97 @@ public class Painter {
 	 */
 	public Painter(){
 		cands = new ArrayList<Image>();
-		//faceDet = Detector.create("src/resources/haarcascade_frontalface_default.xml");
-		faceDet = Detector.create(getDetector());
+		fullDet = loadDetector();
+		faceDet = fullDet;
 		scores = new ArrayList<Double>();
 		r = new Random();
 		initializeDisplay();
 	}
 	
 	/**
-	 * Gets trained Haar Cascade detector from resources.
-	 * @return InputStream of the detector
+	 * Loads the trained Haar Cascade detector from resources.
+	 * Uses the precompiled binary cascade if it is there, and falls back on the OpenCV XML file otherwise.
+	 * @return the detector
 	 */
-	private InputStream getDetector(){		
+	private Detector loadDetector(){
+		InputStream bin = this.getClass().getResourceAsStream("haarcascade_frontalface_default.bin");
+		if (bin != null){
+			try{
+				try{
+					return new Detector(BinaryCascade.read(bin), DetectorConfig.DEFAULT, 1);
+				}
+				finally{
+					bin.close();
+				}
+			}
+			catch (IOException e){
+				e.printStackTrace();
+			}
+		}
 		String path = "haarcascade_frontalface_default.xml";
 		InputStream in = this.getClass().getResourceAsStream(path);
-		return in;
+		return Detector.create(in);
+	}
+
+	/**
+	 * Sets the detector parameters used to score images. The cascade already loaded is kept.
+	 * @param config detector parameters
+	 */
+	public void setDetectorConfig(DetectorConfig config){
+		fullDet = fullDet.withConfig(config);
+		faceDet = schedule.getDetector(fullDet, level);
+		clearCaches(); //scores change with the parameters
+	}
+
+	/**
+	 * Sets how the images are scored as the population improves, during the next runs. By default the whole cascade
+	 * always scores them (FitnessSchedule.FULL). A coarse-to-fine schedule makes the early generations cheaper, but they
+	 * then optimise a different objective: the score of the first stages of the cascade on a sparser grid.
+	 * @param schedule fitness schedule, FitnessSchedule.FULL to always run the whole cascade
+	 */
+	public void setFitnessSchedule(FitnessSchedule schedule){
+		this.schedule = schedule;
+	}
+
+	/**
+	 * Sets how many genomes, and rendered images, have their detection result remembered, so that a child drawn like an
+	 * image already scored is not scanned again. Repeated children are rare until the population converges, and every
+	 * child then costs a digest of its genome and of its pixels, so nothing is remembered by default.
+	 * @param cacheSize number of results remembered, 0 to remember none
+	 */
+	public void setCacheSize(int cacheSize){
+		if (cacheSize > 0){
+			fitnessCache = new FitnessCache<GenomeKey, ScanResult>(cacheSize);
+			pixelCache = new FitnessCache<PixelKey, ScanResult>(cacheSize);
+		}
+		else{
+			fitnessCache = null;
+			pixelCache = null;
+		}
+	}
+
+	/**
+	 * Sets whether children are scored on a sample of their detection windows first, during the next runs. A child whose
+	 * estimated score is clearly below the worst score of the population is then rejected without finishing its scan, and
+	 * the population is left unchanged. The others are scored exactly.
+	 * The rejection is statistical, not exact: a child is rejected when the confidence interval of its estimate (of
+	 * sampleConfidence standard deviations) lies below the worst score, so now and then a child which would have scored
+	 * better is lost, more often than the interval suggests when few windows were sampled. Off by default; see
+	 * setKeepIncumbent for an exact rejection.
+	 * @param sampled true to reject clearly bad children on a sample
+	 */
+	public void setSampledScoring(boolean sampled){
+		this.sampled = sampled;
+	}
+
+	/**
+	 * Sets the replacement policy of the next runs. When the incumbent is kept, a child replaces the least fit image only
+	 * if it scores at least as well, and the scan of a child stops as soon as it cannot: the population only improves.
+	 * Otherwise, as by default, every child replaces the least fit image.
+	 * @param keepIncumbent true to discard the children worse than the least fit image
+	 */
+	public void setKeepIncumbent(boolean keepIncumbent){
+		this.keepIncumbent = keepIncumbent;
 	}
 
 	/**
@@ -59,6 +151,10 @@ public class Painter {
 	 */
 	public void run(int popSize){
 		pop = popSize;
+		level = 0;
+		rejected = 0;
+		faceDet = schedule.getDetector(fullDet, level);
+		clearCaches(); //image and shape parameters may have changed since the last run
 		initializePop();
 		if (!Thread.currentThread().isInterrupted()){
 			evolve();
@@ -75,20 +171,24 @@ public class Painter {
 			//create new i,age
 			Image child = breed();
 			
-			//remove the weakest
-			int kill = getLeastFit();
-			cands.remove(kill);
-			scores.remove(kill);
-			
-			//add new image
-			scores.add(child.getFitness());
-			cands.add(child);
+			//replace the weakest, unless the child was rejected or is worse
+			if (child != null && (!keepIncumbent || child.getFitness() >= scores.get(getLeastFit()))){
+				int kill = getLeastFit();
+				cands.remove(kill);
+				scores.remove(kill);
+				scores.add(child.getFitness());
+				cands.add(child);
+			}
 			
 			//update display label
 			imageDisplay.setText("<html>#" + j + "<br>" + "BEST SCORE: " + d.format(scores.get(getMostFit())) + "</html>");
 
-			//check for convergence
-			if (scores.get(getMostFit()) == scores.get(getLeastFit())){ 
+			//score more finely once the best image does well at the current level
+			int best = getMostFit();
+			setLevel(schedule.getLevel(level, scores.get(best), cands.get(best).getScan().getUnprunedCount()));
+
+			//check for convergence, once scoring with the full detector: coarser scores tie more easily
+			if (level == schedule.getLevelCount() && scores.get(getMostFit()) == scores.get(getLeastFit())){ 
 				Toolkit.getDefaultToolkit().beep(); //beep to alert user to finish
 				break; //end GA
 			}
@@ -99,11 +199,42 @@ public class Painter {
 			}
 			
 			//periodically update display
-			if (j%viewPeriod == 0){
+			if (j%viewPeriod == 0 && child != null){
 				imageDisplay.setIcon(new ImageIcon(child.draw()));
 			}
+
+			//periodically report where the scans spend their time
+			if (j%statsPeriod == 0 && faceDet.getConfig().isInstrumented()){
+				System.out.println("Scan statistics at #" + j + ":\n" + faceDet.getStatistics());
+			}
 		}
 		
+		//report use of the fitness caches, when the detector is instrumented
+		if (fitnessCache != null && faceDet.getConfig().isInstrumented()){
+			System.out.println(String.format("Fitness cache: %d hits, %d misses (%.1f%% hit ratio)",
+					fitnessCache.getHits(), fitnessCache.getMisses(), 100*fitnessCache.getHitRatio()));
+			System.out.println(String.format("Pixel cache: %d hits, %d misses (%.1f%% hit ratio)",
+					pixelCache.getHits(), pixelCache.getMisses(), 100*pixelCache.getHitRatio()));
+		}
+
+		//report children rejected before the end of their scan
+		if (sampled || keepIncumbent){
+			System.out.println("Children rejected before the end of their scan: " + rejected);
+		}
+
+		//report use of the window cache since the last change of level, to size it
+		if (faceDet.getConfig().getWindowCacheSize() > 0){
+			System.out.println("Window cache: " + faceDet.getWindowCacheStats());
+		}
+
+		//report the scan statistics, since the last change of level
+		if (faceDet.getConfig().isInstrumented()){
+			System.out.println("Scan statistics:\n" + faceDet.getStatistics());
+		}
+
+		//final scores are those of the full detector
+		setLevel(schedule.getLevelCount());
+
 		//final update for display
 		imageDisplay.setText("<html>FINISHED<br>SCORE: " + d.format(scores.get(getMostFit())) + "</html>");
 		imageDisplay.setIcon(new ImageIcon(cands.get(getMostFit()).draw()));
@@ -117,26 +248,143 @@ public class Painter {
 		cands.clear();
 		scores.clear();
 		
-		//initialise population
+		//initialise population, scoring the missing candidates in small batches
 		while(cands.size() < pop && !Thread.currentThread().isInterrupted()){ //check for interruption
-			Image cand = new Image();
-			cand.setFitness(scoreImage(cand.draw()));
-			if (cand.getFitness() > 0){ //check fitness isn't absolute 0 before adding it
-				cands.add(cand);
-				scores.add(cand.getFitness());
-				imageDisplay.setText("<html>Initializing <br>" + cands.size() + "/" + pop +  "</html>");
+			ArrayList<Image> batch = new ArrayList<Image>();
+			ArrayList<BufferedImage> drawn = new ArrayList<BufferedImage>();
+			for (int i = cands.size(); i < pop && batch.size() < batchSize; i++){
+				if (Thread.currentThread().isInterrupted()){ //stop without scoring the batch
+					return;
+				}
+				Image cand = new Image();
+				batch.add(cand);
+				drawn.add(cand.draw());
+			}
+			ScanResult[] results = faceDet.scan(drawn);
+			
+			for (int i = 0; i < batch.size(); i++){
+				Image cand = batch.get(i);
+				cand.setScan(results[i]);
+				remember(cand, drawn.get(i));
+				if (cand.getFitness() > 0){ //check fitness isn't absolute 0 before adding it
+					cands.add(cand);
+					scores.add(cand.getFitness());
+				}
 			}
+			imageDisplay.setText("<html>Initializing <br>" + cands.size() + "/" + pop +  "</html>");
+		}
+
+	}
+
+	/**
+	 * Changes the level of the fitness schedule. Scores computed at different levels cannot be compared, so the whole
+	 * population is scored again.
+	 * @param newLevel level of the fitness schedule
+	 */
+	private void setLevel(int newLevel){
+		if (newLevel == level){
+			return;
+		}
+		level = newLevel;
+		faceDet = schedule.getDetector(fullDet, level);
+		clearCaches(); //the remembered results are those of the previous level
+
+		ArrayList<BufferedImage> drawn = new ArrayList<BufferedImage>();
+		for (Image cand : cands){
+			drawn.add(cand.draw());
+		}
+		ScanResult[] results = faceDet.scan(drawn);
+		for (int i = 0; i < cands.size(); i++){
+			Image cand = cands.get(i);
+			cand.setScan(results[i]);
+			remember(cand, drawn.get(i));
+			scores.set(i, cand.getFitness());
+		}
+	}
+
+	/**
+	 * Remembers the detection result of a scored image, if results are cached.
+	 * @param cand the scored image
+	 * @param drawn the image as drawn
+	 */
+	private void remember(Image cand, BufferedImage drawn){
+		if (fitnessCache != null){
+			fitnessCache.put(cand.getGenomeKey(), cand.getScan());
+			pixelCache.put(new PixelKey(drawn), cand.getScan());
+		}
+	}
+
+	/**
+	 * Forgets the cached detection results, if any.
+	 */
+	private void clearCaches(){
+		if (fitnessCache != null){
+			fitnessCache.clear();
+			pixelCache.clear();
 		}
+	}
 
+	/**
+	 * Scores a child. Only the detection windows where the child can be drawn differently from one of its parents are
+	 * evaluated again: the rest of that parent's detection result is reused. The parent the child differs least from is
+	 * taken. If the child renders to the same pixels as an image
+	 * already scored, that image's result is taken without running the detector. With sampled scoring, a child whose
+	 * score is estimated to be clearly below the worst of the population is rejected: it is left unscored. When the
+	 * incumbent is kept, so is a child whose scan shows it cannot reach the worst score.
+	 * @param child the child image
+	 * @param p1 the first parent
+	 * @param p2 the second parent
+	 * @return true if the child was scored, false if it was rejected
+	 */
+	private boolean scoreChild(Image child, Image p1, Image p2){
+		Image parent = p1;
+		Rectangle dirty = child.getChangedBounds(p1);
+		Rectangle dirty2 = child.getChangedBounds(p2);
+		if (faceDet.isCurrent(p2.getScan()) && (!faceDet.isCurrent(p1.getScan()) || area(dirty2) < area(dirty))){
+			parent = p2;
+			dirty = dirty2;
+		}
+		if (dirty == null && faceDet.isCurrent(parent.getScan())){ //drawn identically: same detection result
+			child.setScan(parent.getScan());
+			return true;
+		}
+		BufferedImage drawn = child.draw();
+		PixelKey key = pixelCache != null ? new PixelKey(drawn) : null;
+		ScanResult known = key != null ? pixelCache.get(key) : null;
+		if (known != null && faceDet.isCurrent(known)){
+			child.setScan(known);
+		}
+		else if (sampled){
+			ScanEstimate estimate = faceDet.scanAbove(drawn, parent.getScan(), dirty, scores.get(getLeastFit()), sampleConfidence);
+			if (estimate.isRejected()){
+				rejected++;
+				return false;
+			}
+			child.setScan(estimate.getResult());
+		}
+		else if (keepIncumbent){
+			ScanEstimate estimate = faceDet.scanToBeat(drawn, parent.getScan(), dirty, scores.get(getLeastFit()));
+			if (estimate.isRejected()){
+				rejected++;
+				return false;
+			}
+			child.setScan(estimate.getResult());
+		}
+		else{
+			child.setScan(faceDet.rescan(drawn, parent.getScan(), dirty));
+		}
+		if (key != null){
+			pixelCache.put(key, child.getScan());
+		}
+		return true;
 	}
 
 	/**
-	 * Scores an image
+	 * @param region a region, or null
+	 * @return the area of the region, 0 for null
 	 */
-	private double scoreImage(BufferedImage img){
-		double score = 0f;
-		score += faceDet.getFaces(img);
-		return score;
+	private static long area(Rectangle region){
+		return region == null ? 0 : (long)region.width*region.height;
 	}
 
 	/**
@@ -171,6 +419,7 @@ public class Painter {
 
 	/**
 	 * creates a new image from current population
+	 * @return the scored child, or null if it was rejected as worse than the population
 	 */
 	private Image breed(){
 		//select parents
@@ -184,9 +433,20 @@ public class Painter {
 			it++;
 		}
 
-		//create and score child
+		//create child, and score it unless the same genome was already scored
 		Image child = new Image(p1, p2);
-		child.setFitness(scoreImage(child.draw()));
+		ScanResult known = fitnessCache != null ? fitnessCache.get(child.getGenomeKey()) : null;
+		if (known != null && faceDet.isCurrent(known)){
+			child.setScan(known);
+		}
+		else if (scoreChild(child, p1, p2)){
+			if (fitnessCache != null){
+				fitnessCache.put(child.getGenomeKey(), child.getScan());
+			}
+		}
+		else{
+			return null;
+		}
 
 		return child;
 	}
@@ -0,0 +1,72 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
+
+/**
+ * Identifies a rendered image by a 128 bit hash of its pixels. Two images with equal keys hold the same pixels, so they
+ * have the same fitness, even when their genomes differ (shapes off the canvas, hidden, or mutated back to the same value).
+ */
+public final class PixelKey {
+	private final int width;
+	private final int height;
+	private final long h1;
+	private final long h2;
+
+	/**
+	 * Hashes the pixels of an image.
+	 * @param image the rendered image
+	 */
+	public PixelKey(BufferedImage image){
+		width = image.getWidth();
+		height = image.getHeight();
+
+		//the canvases drawn by Image are 3 byte BGR images, whose data array holds exactly their pixels
+		byte[] data;
+		if (image.getType() == BufferedImage.TYPE_3BYTE_BGR && image.getRaster().getDataBuffer() instanceof DataBufferByte
+				&& image.getRaster().getParent() == null){
+			data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+		}
+		else{
+			ByteBuffer b = ByteBuffer.allocate(4*width*height);
+			b.asIntBuffer().put(image.getRGB(0, 0, width, height, null, 0, width));
+			data = b.array();
+		}
+
+		//two independent multiply-rotate lanes over 8 bytes at a time
+		ByteBuffer b = ByteBuffer.wrap(data);
+		long a = 0x243F6A8885A308D3L, c = 0x13198A2E03707344L;
+		int n = data.length & ~7;
+		for (int i = 0; i < n; i += 8){
+			long w = b.getLong(i);
+			a = Long.rotateLeft(a ^ w, 29) * 0x9E3779B97F4A7C15L;
+			c = Long.rotateLeft(c + w, 37) * 0xC2B2AE3D27D4EB4FL;
+		}
+		for (int i = n; i < data.length; i++){
+			a = Long.rotateLeft(a ^ data[i], 29) * 0x9E3779B97F4A7C15L;
+			c = Long.rotateLeft(c + data[i], 37) * 0xC2B2AE3D27D4EB4FL;
+		}
+		h1 = mix(a ^ data.length);
+		h2 = mix(c + data.length);
+	}
+
+	//MurmurHash3's finalizer
+	private static long mix(long k){
+		k = (k ^ (k >>> 33)) * 0xFF51AFD7ED558CCDL;
+		k = (k ^ (k >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return k ^ (k >>> 33);
+	}
+
+	@Override
+	public boolean equals(Object o){
+		if (!(o instanceof PixelKey)){
+			return false;
+		}
+		PixelKey k = (PixelKey)o;
+		return width == k.width && height == k.height && h1 == k.h1 && h2 == k.h2;
+	}
+
+	@Override
+	public int hashCode(){
+		return (int)h1;
+	}
+}
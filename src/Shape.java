@@ -1,4 +1,8 @@
 
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -113,4 +117,37 @@ public abstract class Shape {
 		return points;
 	}
 	
+	/**
+	 * @return the region of the canvas this shape may paint, for shapes drawn from an x,y,width,height box.
+	 */
+	public Rectangle getBounds(){
+		int[] p = getPoints();
+		return new Rectangle(p[0], p[1], p[2], p[3]);
+	}
+	
+	/**
+	 * Writes this shape's genome: its type, points and colours.
+	 * @param out buffer to write to, with room for at least 256 bytes
+	 */
+	public void writeGenome(ByteBuffer out){
+		byte[] type = getClass().getName().getBytes(StandardCharsets.UTF_8);
+		out.put((byte)type.length).put(type);
+		out.put((byte)points.length);
+		for (int p : points){
+			out.putInt(p);
+		}
+		out.put((byte)cols.length);
+		for (float c : cols){
+			out.putFloat(c);
+		}
+	}
+	
+	/**
+	 * @param s another shape
+	 * @return true if both shapes are drawn identically: same type, same points and same colours
+	 */
+	public boolean drawsSameAs(Shape s){
+		return getClass() == s.getClass() && Arrays.equals(getPoints(), s.getPoints()) && Arrays.equals(cols, s.cols);
+	}
+	
 }
@@ -1,3 +1,7 @@
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+
 /**
  * defines a Triangle shape, to be drawn on an Image.
  *
@@ -50,12 +54,12 @@ public class Triangle extends Shape {
 	}
 
 	/**
-	 * Copies this triangle, with mutation
+	 * Copies this triangle, with mutation. The polarities are copied too: the copy only differs by its mutation.
 	 */
 	public Shape clone(){
-		Shape s = new Triangle();
-		s = super.clone(s);
-		return s;
+		Triangle s = new Triangle();
+		s.polarities = polarities.clone();
+		return super.clone(s);
 	}
 
 	/**
@@ -95,4 +99,23 @@ public class Triangle extends Shape {
 		}
 		return pts;
 	}
+
+	/**
+	 * Writes this triangle's genome: type, points, colours, then the polarities of its supporting corners.
+	 */
+	public void writeGenome(ByteBuffer out){
+		super.writeGenome(out);
+		out.put((byte)polarities.length);
+		for (int p : polarities){
+			out.put((byte)p);
+		}
+	}
+
+	/**
+	 * @return the bounding box of the triangle's corners
+	 */
+	public Rectangle getBounds(){
+		int[] p = getPoints();
+		return new Polygon(new int[]{p[0],p[2],p[4]}, new int[]{p[1],p[3],p[5]}, 3).getBounds();
+	}
 }
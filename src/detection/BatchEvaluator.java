@@ -0,0 +1,49 @@
+package detection;
+
+/**
+ * Runs the cascade on several windows of the same scale at once.
+ *
+ * The only implementation, VectorEvaluator, is written with the incubating Vector API (jdk.incubator.vector). It is kept
+ * in a separate source root, src-vector, and loaded by reflection, so that the rest of the detector compiles and runs
+ * without that module: when the class or the module is not available (or the cascade is not made of stumps), get()
+ * returns null and the windows are evaluated one by one.
+ */
+abstract class BatchEvaluator {
+	/** Set this system property to false to always evaluate windows one by one. */
+	static final String PROPERTY = "detection.vector";
+
+	/**
+	 * @return The number of windows evaluated by each call of depths().
+	 */
+	abstract int lanes();
+
+	/**
+	 * Computes the depth reached in the cascade by a batch of windows, exactly like ScaledCascade.depth does.
+	 * @param level The scale of the windows.
+	 * @param grayImage The integral image, row-major.
+	 * @param bases The index of the top-left corner of each window in the integral images, lanes() long.
+	 * @param vnorms The normalization of each window, lanes() long.
+	 * @param count The number of windows of the batch: the entries from count to lanes()-1 are ignored.
+	 * @param depths Receives the depth of each window.
+	 */
+	abstract void depths(ScaledCascade level, int[] grayImage, int[] bases, double[] vnorms, int count, int[] depths);
+
+	/**
+	 * Creates a batch evaluator for a cascade, if the platform and the cascade allow it.
+	 * @return The evaluator, or null if windows have to be evaluated one by one.
+	 */
+	static BatchEvaluator get(Cascade cascade) {
+		if ("false".equals(System.getProperty(PROPERTY)))
+			return null;
+		try {
+			return (BatchEvaluator) Class.forName("detection.VectorEvaluator").getDeclaredConstructor(Cascade.class)
+					.newInstance(cascade);
+		} catch (LinkageError e) {
+			/* The jdk.incubator.vector module is not there. */
+			return null;
+		} catch (ReflectiveOperationException e) {
+			/* The constructor refused the cascade or the platform. */
+			return null;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package detection;
+
+import java.awt.Point;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A compact binary format for compiled cascades, which loads much faster than the OpenCV XML file: the tables of the
+ * Cascade are stored one after the other, and are read back with bulk copies.
+ *
+ * Layout (big-endian): the magic number, the format version, the detector width and height, the number of stages,
+ * trees, nodes and rectangles, then each table of the Cascade in the order of its fields.
+ *
+ * Run as a program to convert an XML cascade: java detection.BinaryCascade cascade.xml cascade.bin
+ */
+public class BinaryCascade {
+	/** "HAAR" */
+	private static final int MAGIC = 0x48414152;
+	private static final int VERSION = 1;
+
+	/**
+	 * Converts an OpenCV XML cascade to the binary format.
+	 * @param args The XML file and the binary file to write.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: java detection.BinaryCascade <cascade.xml> <cascade.bin>");
+			System.exit(1);
+		}
+		Cascade cascade = Detector.create(args[0]).getCascade();
+		OutputStream out = new FileOutputStream(args[1]);
+		try {
+			write(cascade, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes a cascade in the binary format.
+	 */
+	public static void write(Cascade c, OutputStream output) throws IOException {
+		DataOutputStream out = new DataOutputStream(output);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(c.size.x);
+		out.writeInt(c.size.y);
+		out.writeInt(c.nbStages);
+		out.writeInt(c.treeNodeStart.length - 1);
+		out.writeInt(c.nodeThreshold.length);
+		out.writeInt(c.rectX.length);
+		write(out, c.stageTreeStart);
+		write(out, c.stageThreshold);
+		write(out, c.treeNodeStart);
+		write(out, c.nodeThreshold);
+		write(out, c.nodeLeft);
+		write(out, c.nodeRight);
+		write(out, c.nodeLeftVal);
+		write(out, c.nodeRightVal);
+		write(out, c.nodeRectStart);
+		write(out, c.rectX);
+		write(out, c.rectY);
+		write(out, c.rectW);
+		write(out, c.rectH);
+		write(out, c.rectWeight);
+		out.flush();
+	}
+
+	/**
+	 * Loads a binary cascade file, mapping it in memory rather than reading it through a stream.
+	 */
+	public static Cascade load(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads a binary cascade from a stream, e.g. a resource of the jar.
+	 */
+	public static Cascade read(InputStream input) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+		byte[] buffer = new byte[1 << 14];
+		int n;
+		while ((n = input.read(buffer)) > 0)
+			bytes.write(buffer, 0, n);
+		return read(ByteBuffer.wrap(bytes.toByteArray()));
+	}
+
+	/**
+	 * Reads a binary cascade from a buffer, starting at its position.
+	 */
+	public static Cascade read(ByteBuffer in) throws IOException {
+		if (in.remaining() < 32 || in.getInt() != MAGIC)
+			throw new IOException("Not a binary cascade");
+		int version = in.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported binary cascade version " + version);
+		Point size = new Point(in.getInt(), in.getInt());
+		int nbStages = in.getInt();
+		int nbTrees = in.getInt();
+		int nbNodes = in.getInt();
+		int nbRects = in.getInt();
+		if (size.x <= 0 || size.y <= 0)
+			throw new IOException("Invalid detector size in binary cascade: " + size.x + "x" + size.y);
+		if (nbStages < 0 || nbTrees < 0 || nbNodes < 0 || nbRects < 0)
+			throw new IOException("Negative count in binary cascade");
+		/* Summed on longs: counts from a corrupt header must not wrap around. */
+		if (in.remaining() < 4L * (2L * nbStages + nbTrees + 6L * nbNodes + 5L * nbRects + 3))
+			throw new IOException("Truncated binary cascade");
+		int[] stageTreeStart = readInts(in, nbStages + 1);
+		float[] stageThreshold = readFloats(in, nbStages);
+		int[] treeNodeStart = readInts(in, nbTrees + 1);
+		float[] nodeThreshold = readFloats(in, nbNodes);
+		int[] nodeLeft = readInts(in, nbNodes);
+		int[] nodeRight = readInts(in, nbNodes);
+		float[] nodeLeftVal = readFloats(in, nbNodes);
+		float[] nodeRightVal = readFloats(in, nbNodes);
+		int[] nodeRectStart = readInts(in, nbNodes + 1);
+		int[] rectX = readInts(in, nbRects);
+		int[] rectY = readInts(in, nbRects);
+		int[] rectW = readInts(in, nbRects);
+		int[] rectH = readInts(in, nbRects);
+		float[] rectWeight = readFloats(in, nbRects);
+
+		/* Every index must stay within its table, or the scan would read out of bounds (or loop) on the first window. */
+		checkStarts(stageTreeStart, nbTrees, "stage");
+		checkStarts(treeNodeStart, nbNodes, "tree");
+		checkStarts(nodeRectStart, nbRects, "node");
+		for (int t = 0; t < nbTrees; t++) {
+			if (treeNodeStart[t] == treeNodeStart[t + 1])
+				throw new IOException("Empty tree " + t + " in binary cascade");
+			for (int n = treeNodeStart[t]; n < treeNodeStart[t + 1]; n++) {
+				/* A child is a later node of the same tree, or -1 for a leaf: walking a tree always ends. */
+				if (!isChild(nodeLeft[n], n, treeNodeStart[t + 1]) || !isChild(nodeRight[n], n, treeNodeStart[t + 1]))
+					throw new IOException("Invalid child of node " + n + " in binary cascade");
+			}
+		}
+		for (int r = 0; r < nbRects; r++) {
+			if (rectX[r] < 0 || rectY[r] < 0 || rectW[r] < 0 || rectH[r] < 0
+					|| (long) rectX[r] + rectW[r] > size.x || (long) rectY[r] + rectH[r] > size.y)
+				throw new IOException("Rectangle " + r + " out of the detector window in binary cascade");
+		}
+		return new Cascade(size, stageTreeStart, stageThreshold, treeNodeStart, nodeThreshold, nodeLeft, nodeRight,
+				nodeLeftVal, nodeRightVal, nodeRectStart, rectX, rectY, rectW, rectH, rectWeight);
+	}
+
+	/**
+	 * Checks a table of start indices: from 0 to count, never decreasing.
+	 */
+	private static void checkStarts(int[] start, int count, String name) throws IOException {
+		if (start[0] != 0 || start[start.length - 1] != count)
+			throw new IOException("Invalid " + name + " start indices in binary cascade");
+		for (int k = 1; k < start.length; k++)
+			if (start[k] < start[k - 1])
+				throw new IOException("Invalid " + name + " start indices in binary cascade");
+	}
+
+	private static boolean isChild(int child, int node, int treeEnd) {
+		return child == -1 || (child > node && child < treeEnd);
+	}
+
+	private static void write(DataOutputStream out, int[] a) throws IOException {
+		for (int v : a)
+			out.writeInt(v);
+	}
+
+	private static void write(DataOutputStream out, float[] a) throws IOException {
+		for (float v : a)
+			out.writeFloat(v);
+	}
+
+	private static int[] readInts(ByteBuffer in, int n) {
+		int[] a = new int[n];
+		in.asIntBuffer().get(a);
+		in.position(in.position() + 4 * n);
+		return a;
+	}
+
+	private static float[] readFloats(ByteBuffer in, int n) {
+		float[] a = new float[n];
+		in.asFloatBuffer().get(a);
+		in.position(in.position() + 4 * n);
+		return a;
+	}
+}
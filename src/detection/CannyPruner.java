@@ -71,4 +71,67 @@ public class CannyPruner
 				}
 		return canny;
 	}
+
+	/** Compute the Canny Edge detector of an image, on flat row-major buffers (pixel (i,j) at index j*width+i).
+	 * Same result as getIntegralCanny(int[][]), but the buffers are provided by the caller so that they can be reused,
+	 * and the work is done in two passes over the rows:
+	 * - the gaussian filter. Its kernel is not separable, but it is symmetric: each column of the kernel is one of three
+	 *   vertical filters, which are applied once per pixel and then combined horizontally;
+	 * - the gradient, added to the integral image as soon as it is computed.
+	 * @param grayImage The grayscale original image.
+	 * @param width The width of the image.
+	 * @param height The height of the image.
+	 * @param blur Scratch buffer for the filtered image, at least width*height long.
+	 * @param rows Scratch buffer for the vertical filters, at least 3*width long.
+	 * @param canny Receives the image of edges detected, as an integral image. At least width*height long.*/
+	public static void getIntegralCanny(int[] grayImage, int width, int height, int[] blur, int[] rows, int[] canny)
+	{
+		/* Convolution of the image by a gaussian filter to reduce noise.
+		 * The columns of the kernel are (2 4 5 4 2) at distance 2 of the center, (4 9 12 9 4) at distance 1 and
+		 * (5 12 15 12 5) at the center. The borders, which are not filtered, are 0. */
+		java.util.Arrays.fill(blur,0,Math.min(2,height)*width,0);
+		if(height>2)
+			java.util.Arrays.fill(blur,Math.max(2,height-2)*width,height*width,0);
+		int w2=2*width;
+		for(int j=2;j<height-2;j++)
+		{
+			int k=j*width;
+			for(int i=0;i<width;i++,k++)
+			{
+				int a=grayImage[k-w2]+grayImage[k+w2];
+				int b=grayImage[k-width]+grayImage[k+width];
+				int c=grayImage[k];
+				rows[i]=2*a+4*b+5*c;
+				rows[width+i]=4*a+9*b+12*c;
+				rows[w2+i]=5*a+12*b+15*c;
+			}
+			k=j*width;
+			blur[k]=0;
+			if(width>1)
+				blur[k+1]=0;
+			for(int i=2;i<width-2;i++)
+				blur[k+i]=(rows[i-2]+rows[i+2]+rows[width+i-1]+rows[width+i+1]+rows[w2+i])/159;
+			for(int i=Math.max(2,width-2);i<width;i++)
+				blur[k+i]=0;
+		}
+
+		/*Computation of the discrete gradient of the image, and of the integral Canny image.
+		 * The gradient is 0 on the borders. */
+		for(int j=0;j<height;j++)
+		{
+			int k=j*width;
+			int col=0;
+			boolean inside=j>=1&&j<height-1;
+			for(int i=0;i<width;i++,k++)
+			{
+				if(inside&&i>=1&&i<width-1)
+				{
+					int grad_x =-blur[k-1-width]+blur[k+1-width]-2*blur[k-1]+2*blur[k+1]-blur[k-1+width]+blur[k+1+width];
+					int grad_y = blur[k-1-width]+2*blur[k-width]+blur[k+1-width]-blur[k-1+width]-2*blur[k+width]-blur[k+1+width];
+					col+=Math.abs(grad_x)+Math.abs(grad_y);
+				}
+				canny[k]=(j>0?canny[k-width]:0)+col;
+			}
+		}
+	}
 }
@@ -0,0 +1,227 @@
+package detection;
+
+import java.awt.Point;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compiled form of the Haar cascade. The stages, trees, features and rectangles read from the XML file are flattened
+ * into primitive arrays (struct-of-arrays), so that evaluating a window walks a few int[]/float[] tables instead of
+ * linked lists of small objects.
+ *
+ * Node children are stored as global node indices. A child index of -1 means that the corresponding side is a leaf, and
+ * its value is found in the left/right value table.
+ *
+ * The tables are evaluated by ScaledCascade, which reproduces Stage.pass/Tree.getVal/Feature.getLeftOrRight operation for
+ * operation, so depths are identical.
+ */
+public class Cascade {
+	/** Size (in pixels) of the detector window at scale 1. */
+	final Point size;
+
+	final int nbStages;
+	/** Trees of stage s are stageTreeStart[s] .. stageTreeStart[s+1]-1. */
+	final int[] stageTreeStart;
+	final float[] stageThreshold;
+
+	/** Nodes of tree t are treeNodeStart[t] .. treeNodeStart[t+1]-1, the first one being the root. */
+	final int[] treeNodeStart;
+
+	final float[] nodeThreshold;
+	final int[] nodeLeft;
+	final int[] nodeRight;
+	final float[] nodeLeftVal;
+	final float[] nodeRightVal;
+	/** Rectangles of node n are nodeRectStart[n] .. nodeRectStart[n+1]-1. */
+	final int[] nodeRectStart;
+
+	/* Rectangle coordinates, in the detector's unscaled frame. */
+	final int[] rectX;
+	final int[] rectY;
+	final int[] rectW;
+	final int[] rectH;
+	final float[] rectWeight;
+
+	/** Whether every tree is a stump: a single node, with a leaf on both sides. Tree t is then node t. */
+	final boolean stumps;
+
+	/** The cascade this one keeps the first stages of (see withStages), or this cascade. */
+	private final Cascade complete;
+
+	/**
+	 * Compiles a list of stages.
+	 * @param stages The stages of the detector, in order.
+	 * @param size The size of the detector window.
+	 */
+	public Cascade(List<Stage> stages, Point size) {
+		this.size = size;
+
+		/* Count everything first so that the tables can be allocated at their final size. */
+		int nbTrees = 0, nbNodes = 0, nbRects = 0;
+		for (Stage s : stages) {
+			for (Tree t : s.trees) {
+				nbTrees++;
+				for (Feature f : t.features) {
+					nbNodes++;
+					nbRects += f.nb_rects;
+				}
+			}
+		}
+
+		nbStages = stages.size();
+		stageTreeStart = new int[nbStages + 1];
+		stageThreshold = new float[nbStages];
+		treeNodeStart = new int[nbTrees + 1];
+		nodeThreshold = new float[nbNodes];
+		nodeLeft = new int[nbNodes];
+		nodeRight = new int[nbNodes];
+		nodeLeftVal = new float[nbNodes];
+		nodeRightVal = new float[nbNodes];
+		nodeRectStart = new int[nbNodes + 1];
+		rectX = new int[nbRects];
+		rectY = new int[nbRects];
+		rectW = new int[nbRects];
+		rectH = new int[nbRects];
+		rectWeight = new float[nbRects];
+
+		int s = 0, t = 0, n = 0, r = 0;
+		for (Stage stage : stages) {
+			stageTreeStart[s] = t;
+			stageThreshold[s] = stage.threshold;
+			for (Tree tree : stage.trees) {
+				treeNodeStart[t] = n;
+				int root = n;
+				for (Feature f : tree.features) {
+					nodeThreshold[n] = f.threshold;
+					/* Tree-local node indices become global ones. */
+					nodeLeft[n] = f.has_left_val ? -1 : root + f.left_node;
+					nodeRight[n] = f.has_right_val ? -1 : root + f.right_node;
+					nodeLeftVal[n] = f.left_val;
+					nodeRightVal[n] = f.right_val;
+					nodeRectStart[n] = r;
+					for (int k = 0; k < f.nb_rects; k++) {
+						Rect rect = f.rects[k];
+						rectX[r] = rect.x1;
+						rectY[r] = rect.x2;
+						rectW[r] = rect.y1;
+						rectH[r] = rect.y2;
+						rectWeight[r] = rect.weight;
+						r++;
+					}
+					n++;
+				}
+				t++;
+			}
+			s++;
+		}
+		stageTreeStart[s] = t;
+		treeNodeStart[t] = n;
+		nodeRectStart[n] = r;
+		stumps = stumps(treeNodeStart, nodeLeft, nodeRight);
+		complete = this;
+	}
+
+	/**
+	 * Builds a cascade from its tables, e.g. as read from a binary cascade file. The arrays are used as they are.
+	 */
+	Cascade(Point size, int[] stageTreeStart, float[] stageThreshold, int[] treeNodeStart, float[] nodeThreshold,
+			int[] nodeLeft, int[] nodeRight, float[] nodeLeftVal, float[] nodeRightVal, int[] nodeRectStart, int[] rectX,
+			int[] rectY, int[] rectW, int[] rectH, float[] rectWeight) {
+		this.size = size;
+		this.nbStages = stageThreshold.length;
+		this.stageTreeStart = stageTreeStart;
+		this.stageThreshold = stageThreshold;
+		this.treeNodeStart = treeNodeStart;
+		this.nodeThreshold = nodeThreshold;
+		this.nodeLeft = nodeLeft;
+		this.nodeRight = nodeRight;
+		this.nodeLeftVal = nodeLeftVal;
+		this.nodeRightVal = nodeRightVal;
+		this.nodeRectStart = nodeRectStart;
+		this.rectX = rectX;
+		this.rectY = rectY;
+		this.rectW = rectW;
+		this.rectH = rectH;
+		this.rectWeight = rectWeight;
+		this.stumps = stumps(treeNodeStart, nodeLeft, nodeRight);
+		this.complete = this;
+	}
+
+	/** Keeps the first stages of a complete cascade, sharing its tables. */
+	private Cascade(Cascade complete, int nbStages) {
+		this.size = complete.size;
+		this.nbStages = nbStages;
+		this.stageTreeStart = Arrays.copyOf(complete.stageTreeStart, nbStages + 1);
+		this.stageThreshold = Arrays.copyOf(complete.stageThreshold, nbStages);
+		this.treeNodeStart = complete.treeNodeStart;
+		this.nodeThreshold = complete.nodeThreshold;
+		this.nodeLeft = complete.nodeLeft;
+		this.nodeRight = complete.nodeRight;
+		this.nodeLeftVal = complete.nodeLeftVal;
+		this.nodeRightVal = complete.nodeRightVal;
+		this.nodeRectStart = complete.nodeRectStart;
+		this.rectX = complete.rectX;
+		this.rectY = complete.rectY;
+		this.rectW = complete.rectW;
+		this.rectH = complete.rectH;
+		this.rectWeight = complete.rectWeight;
+		this.stumps = complete.stumps;
+		this.complete = complete;
+	}
+
+	private static boolean stumps(int[] treeNodeStart, int[] nodeLeft, int[] nodeRight) {
+		for (int t = 0; t < treeNodeStart.length - 1; t++) {
+			int n = treeNodeStart[t];
+			if (n != t || treeNodeStart[t + 1] != n + 1 || nodeLeft[n] >= 0 || nodeRight[n] >= 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the cascade made of the first stages of the complete cascade. A window passes all the stages of the
+	 * truncated cascade when it passes the first nbStages stages of the complete one. The stages are always taken from the
+	 * complete cascade, so a truncated cascade can be extended again.
+	 * @param nbStages The number of stages kept, at least 1. Above the number of stages of the complete cascade, all of
+	 *        them are kept.
+	 * @return The truncated cascade, or the complete one.
+	 */
+	public Cascade withStages(int nbStages) {
+		if (nbStages < 1)
+			throw new IllegalArgumentException("At least one stage must be kept: " + nbStages);
+		if (nbStages >= complete.nbStages)
+			return complete;
+		if (nbStages == this.nbStages)
+			return this;
+		return new Cascade(complete, nbStages);
+	}
+
+	/**
+	 * @return Whether every tree of the cascade is a stump (a single feature with a leaf value on both sides), as in
+	 *         OpenCV's haarcascade_frontalface_default. Such cascades are evaluated by a specialized loop.
+	 */
+	public boolean isStumps() {
+		return stumps;
+	}
+
+	/**
+	 * @return The number of stages of the cascade.
+	 */
+	public int getStageCount() {
+		return nbStages;
+	}
+
+	/**
+	 * @return The number of stages of the complete cascade, this one being the complete cascade or its first stages.
+	 */
+	public int getCompleteStageCount() {
+		return complete.nbStages;
+	}
+
+	/**
+	 * @return The size of the detector window at scale 1.
+	 */
+	public Point getSize() {
+		return size;
+	}
+}
@@ -0,0 +1,125 @@
+package detection;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Compares the speed of the ways of evaluating the cascade: from the tables one window at a time, from the tables in
+ * vector batches (when the platform allows it), compiled to bytecode (see DetectorConfig.withCompiledCascade), and in
+ * fixed point (see DetectorConfig.withFixedPoint). The depths of every window are checked to be the same, except in
+ * fixed point, where the windows reaching a different depth, and those passing or failing the whole cascade
+ * differently, are counted.
+ *
+ * Usage: CascadeBenchmark cascade.xml [base scale] [image files...]. Without image files, random images of overlapping
+ * shapes, as drawn by the GA, are used.
+ */
+public class CascadeBenchmark {
+	private static final int ROUNDS = 10;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: CascadeBenchmark cascade.xml [base scale] [image files...]");
+			System.exit(1);
+		}
+		Cascade cascade = Detector.create(args[0]).getCascade();
+		float baseScale = args.length > 1 ? Float.parseFloat(args[1]) : 1;
+		List<BufferedImage> images = new ArrayList<BufferedImage>();
+		for (int i = 2; i < args.length; i++)
+			images.add(ImageIO.read(new File(args[i])));
+		if (images.isEmpty())
+			images = randomImages(20, 100, new Random(0));
+
+		/* Canny pruning off, so that every window is evaluated. */
+		DetectorConfig config = DetectorConfig.DEFAULT.withBaseScale(baseScale).withCannyPruning(false);
+		Detector compiled = new Detector(cascade, config.withCompiledCascade(true), 1);
+		Detector fixed = new Detector(cascade, config.withFixedPoint(true), 1);
+		Detector batched = BatchEvaluator.get(cascade) != null ? new Detector(cascade, config, 1) : null;
+		String vector = System.getProperty(BatchEvaluator.PROPERTY);
+		System.setProperty(BatchEvaluator.PROPERTY, "false");
+		Detector tables = new Detector(cascade, config, 1);
+		if (vector == null)
+			System.clearProperty(BatchEvaluator.PROPERTY);
+		else
+			System.setProperty(BatchEvaluator.PROPERTY, vector);
+
+		long start = System.nanoTime();
+		ScanResult[] expected = run(tables, images);
+		ScanResult[] actual = run(compiled, images);
+		System.out.println(String.format("%d images, %d windows each; first scans (including compilation): %.1f ms",
+				images.size(), expected[0].getWindowCount(), (System.nanoTime() - start) / 1e6));
+		check(expected, actual, "compiled");
+		if (batched != null)
+			check(expected, run(batched, images), "vector");
+		compare(expected, run(fixed, images), cascade.nbStages);
+
+		for (int round = 0; round < ROUNDS; round++) {
+			StringBuilder b = new StringBuilder("round " + round + ":");
+			b.append(time(tables, images, "tables"));
+			if (batched != null)
+				b.append(time(batched, images, "vector"));
+			b.append(time(compiled, images, "compiled"));
+			b.append(time(fixed, images, "fixed point"));
+			System.out.println(b);
+		}
+	}
+
+	private static ScanResult[] run(Detector detector, List<BufferedImage> images) {
+		ScanResult[] results = new ScanResult[images.size()];
+		for (int i = 0; i < results.length; i++)
+			results[i] = detector.scan(images.get(i));
+		return results;
+	}
+
+	private static String time(Detector detector, List<BufferedImage> images, String name) {
+		long start = System.nanoTime();
+		run(detector, images);
+		return String.format(" %s %.2f ms/image", name, (System.nanoTime() - start) / 1e6 / images.size());
+	}
+
+	private static void check(ScanResult[] expected, ScanResult[] actual, String name) {
+		for (int i = 0; i < expected.length; i++)
+			if (!Arrays.equals(expected[i].depths, actual[i].depths))
+				throw new IllegalStateException("The " + name + " depths differ from the tables' on image " + i);
+	}
+
+	private static void compare(ScanResult[] expected, ScanResult[] actual, int nbStages) {
+		long windows = 0, depths = 0, detections = 0;
+		for (int i = 0; i < expected.length; i++) {
+			for (int w = 0; w < expected[i].depths.length; w++) {
+				int e = expected[i].depths[w], a = actual[i].depths[w];
+				windows++;
+				if (e != a)
+					depths++;
+				if ((e == nbStages) != (a == nbStages))
+					detections++;
+			}
+		}
+		System.out.println(String.format("fixed point: %d of %d windows reach another depth, %d pass or fail differently",
+				depths, windows, detections));
+	}
+
+	private static List<BufferedImage> randomImages(int count, int size, Random r) {
+		List<BufferedImage> images = new ArrayList<BufferedImage>();
+		for (int i = 0; i < count; i++) {
+			BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_3BYTE_BGR);
+			Graphics2D g = image.createGraphics();
+			for (int k = 0; k < 100; k++) {
+				g.setColor(new Color(r.nextInt(256), r.nextInt(256), r.nextInt(256), 128));
+				int x = r.nextInt(size), y = r.nextInt(size);
+				g.fillOval(x - size / 4, y - size / 4, r.nextInt(size / 2) + 1, r.nextInt(size / 2) + 1);
+			}
+			g.dispose();
+			images.add(image);
+		}
+		return images;
+	}
+}
@@ -0,0 +1,369 @@
+package detection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the class file of a CompiledCascade for one scale of a cascade.
+ *
+ * The class has a depth() method which runs the stages in order, and one static method per chunk of consecutive nodes
+ * of a stage: the chunk takes the stage sum so far, adds the leaf value chosen by each node, and returns it. Chunks are
+ * kept below HotSpot's limit on the size of the methods it compiles (8000 bytes of bytecode).
+ *
+ * Each node is compiled to the operations of ScaledCascade.goesLeft, on the same types and in the same order, with its
+ * constants inlined, so the depths are identical to the interpreted ones.
+ *
+ * The class file is of version 49 (Java 5), which does not need stack map frames: the JVM infers the types at the
+ * branches of depth() itself. Methods are strictfp.
+ */
+final class CascadeCompiler {
+	/** Above this size, in bytes, a chunk is closed and the next nodes go to a new one. */
+	private static final int CHUNK_SIZE = 6000;
+
+	private static final String SUPER = "detection/CompiledCascade";
+	private static final String NAME = "detection/CompiledCascade$Generated";
+	private static final String CHUNK = "(F[IID)F";
+
+	/* Access flags. */
+	private static final int ACC_PRIVATE = 0x0002, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020,
+			ACC_STRICT = 0x0800;
+
+	/* Opcodes. */
+	private static final int ICONST_0 = 0x03, ICONST_1 = 0x04, FCONST_0 = 0x0b, BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12,
+			LDC_W = 0x13, LDC2_W = 0x14, ILOAD_2 = 0x1c, FLOAD_0 = 0x22, DLOAD_3 = 0x29, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b,
+			IALOAD = 0x2e, IADD = 0x60, FADD = 0x62, ISUB = 0x64, FMUL = 0x6a, DMUL = 0x6b, ISHR = 0x7a, IAND = 0x7e,
+			IXOR = 0x82, I2F = 0x86, I2D = 0x87, F2I = 0x8b, FCMPL = 0x95, DCMPG = 0x98, IFGT = 0x9d, IRETURN = 0xac,
+			FRETURN = 0xae, RETURN = 0xb1, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+
+	private final ScaledCascade level;
+	private final ConstantPool pool = new ConstantPool();
+	private final List<byte[]> methods = new ArrayList<byte[]>();
+
+	CascadeCompiler(ScaledCascade level) {
+		this.level = level;
+	}
+
+	/**
+	 * @return The class file.
+	 */
+	byte[] toByteArray() {
+		methods.add(method(0, "<init>", "()V", 1, 1, constructor()));
+		methods.add(method(ACC_STRICT, "depth", "([IID)I", 5, 5, depth()));
+
+		Bytes b = new Bytes();
+		b.u4(0xCAFEBABE);
+		b.u2(0);
+		b.u2(49);
+		int thisClass = pool.classRef(NAME), superClass = pool.classRef(SUPER);
+		pool.utf8("Code");
+		b.bytes(pool.toByteArray());
+		b.u2(ACC_FINAL | ACC_SUPER);
+		b.u2(thisClass);
+		b.u2(superClass);
+		b.u2(0); // interfaces
+		b.u2(0); // fields
+		b.u2(methods.size());
+		for (byte[] m : methods)
+			b.bytes(m);
+		b.u2(0); // attributes
+		return b.toByteArray();
+	}
+
+	private byte[] constructor() {
+		Bytes code = new Bytes();
+		code.u1(ALOAD_0);
+		code.u1(INVOKESPECIAL);
+		code.u2(pool.methodRef(SUPER, "<init>", "()V"));
+		code.u1(RETURN);
+		return code.toByteArray();
+	}
+
+	/** The stages: each one sums its chunks, then the window is rejected unless the sum exceeds the threshold. */
+	private byte[] depth() {
+		Cascade c = level.cascade;
+		Bytes code = new Bytes();
+		for (int s = 0; s < c.nbStages; s++) {
+			code.u1(FCONST_0);
+			int n = c.stageTreeStart[s], end = c.stageTreeStart[s + 1];
+			while (n < end) {
+				Bytes chunk = new Bytes();
+				chunk.u1(FLOAD_0);
+				/* Each node adds its leaf value to the sum, left on the stack. */
+				do
+					node(chunk, c.treeNodeStart[n++]);
+				while (n < end && chunk.size() < CHUNK_SIZE);
+				chunk.u1(FRETURN);
+				String name = "c" + methods.size();
+				methods.add(method(ACC_PRIVATE | ACC_STATIC | ACC_STRICT, name, CHUNK, 8, 5, chunk.toByteArray()));
+
+				code.u1(ALOAD_1);
+				code.u1(ILOAD_2);
+				code.u1(DLOAD_3);
+				code.u1(INVOKESTATIC);
+				code.u2(pool.methodRef(NAME, name, CHUNK));
+			}
+			/* if (!(sum > threshold)) return s; */
+			ldc(code, pool.floatConstant(c.stageThreshold[s]));
+			code.u1(FCMPL);
+			code.u1(IFGT);
+			Bytes ret = new Bytes();
+			push(ret, s);
+			ret.u1(IRETURN);
+			code.u2(3 + ret.size());
+			code.bytes(ret.toByteArray());
+		}
+		push(code, c.nbStages);
+		code.u1(IRETURN);
+		return code.toByteArray();
+	}
+
+	/**
+	 * A stump: sum += rect_sum * inv_area < threshold * vnorm ? left : right, with the locals of a chunk (0: sum,
+	 * 1: grayImage, 2: base, 3: vnorm) and the sum on the stack.
+	 */
+	private void node(Bytes code, int n) {
+		Cascade c = level.cascade;
+		int[] off = level.rectOffsets;
+		for (int r = c.nodeRectStart[n]; r < c.nodeRectStart[n + 1]; r++) {
+			int o = 4 * r;
+			/* (int) ((g[base + o3] - g[base + o2] - g[base + o1] + g[base + o0]) * weight) */
+			corner(code, off[o + 3]);
+			corner(code, off[o + 2]);
+			code.u1(ISUB);
+			corner(code, off[o + 1]);
+			code.u1(ISUB);
+			corner(code, off[o]);
+			code.u1(IADD);
+			code.u1(I2F);
+			ldc(code, pool.floatConstant(c.rectWeight[r]));
+			code.u1(FMUL);
+			code.u1(F2I);
+			if (r > c.nodeRectStart[n])
+				code.u1(IADD);
+		}
+		if (c.nodeRectStart[n + 1] == c.nodeRectStart[n])
+			code.u1(ICONST_0);
+		code.u1(I2D);
+		code.u1(LDC2_W);
+		code.u2(pool.doubleConstant(level.inv_area));
+		code.u1(DMUL);
+		/* The float threshold times the double vnorm: the threshold is promoted to a double, exactly. */
+		code.u1(LDC2_W);
+		code.u2(pool.doubleConstant(c.nodeThreshold[n]));
+		code.u1(DLOAD_3);
+		code.u1(DMUL);
+		/* dcmpg gives -1 if less, and 0 or 1 otherwise, including when either is NaN, as the < operator: shifted right,
+		 * a mask of the bits where the left value differs from the right one, selected without a branch. With
+		 * branches, the JIT would compile each node for the side it has seen taken, and compile the chunk again each
+		 * time a window takes the other side of one of its thousands of nodes. */
+		int left = Float.floatToRawIntBits(c.nodeLeftVal[n]), right = Float.floatToRawIntBits(c.nodeRightVal[n]);
+		code.u1(DCMPG);
+		code.u1(ICONST_1);
+		code.u1(ISHR);
+		push(code, left ^ right);
+		code.u1(IAND);
+		push(code, right);
+		code.u1(IXOR);
+		code.u1(INVOKESTATIC);
+		code.u2(pool.methodRef("java/lang/Float", "intBitsToFloat", "(I)F"));
+		code.u1(FADD);
+	}
+
+	/** Pushes grayImage[base + offset]. */
+	private void corner(Bytes code, int offset) {
+		code.u1(ALOAD_1);
+		code.u1(ILOAD_2);
+		if (offset != 0) {
+			push(code, offset);
+			code.u1(IADD);
+		}
+		code.u1(IALOAD);
+	}
+
+	private void push(Bytes code, int v) {
+		if (v >= -1 && v <= 5) {
+			code.u1(ICONST_0 + v);
+		} else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+			code.u1(BIPUSH);
+			code.u1(v);
+		} else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+			code.u1(SIPUSH);
+			code.u2(v);
+		} else {
+			ldc(code, pool.intConstant(v));
+		}
+	}
+
+	private static void ldc(Bytes code, int index) {
+		if (index < 256) {
+			code.u1(LDC);
+			code.u1(index);
+		} else {
+			code.u1(LDC_W);
+			code.u2(index);
+		}
+	}
+
+	private byte[] method(int access, String name, String descriptor, int maxStack, int maxLocals, byte[] code) {
+		Bytes m = new Bytes();
+		m.u2(access);
+		m.u2(pool.utf8(name));
+		m.u2(pool.utf8(descriptor));
+		m.u2(1);
+		m.u2(pool.utf8("Code"));
+		m.u4(2 + 2 + 4 + code.length + 2 + 2);
+		m.u2(maxStack);
+		m.u2(maxLocals);
+		m.u4(code.length);
+		m.bytes(code);
+		m.u2(0); // exception table
+		m.u2(0); // attributes
+		return m.toByteArray();
+	}
+
+	/** The constant pool, each constant being written once. */
+	private static final class ConstantPool {
+		private final Bytes bytes = new Bytes();
+		private final Map<String, Integer> indices = new HashMap<String, Integer>();
+		private int count = 1;
+
+		int utf8(String s) {
+			Integer i = indices.get("U" + s);
+			if (i != null)
+				return i;
+			bytes.u1(1);
+			bytes.utf(s);
+			return add("U" + s, 1);
+		}
+
+		int classRef(String name) {
+			Integer i = indices.get("C" + name);
+			if (i != null)
+				return i;
+			int n = utf8(name);
+			bytes.u1(7);
+			bytes.u2(n);
+			return add("C" + name, 1);
+		}
+
+		int methodRef(String owner, String name, String descriptor) {
+			String key = "M" + owner + "." + name + descriptor;
+			Integer i = indices.get(key);
+			if (i != null)
+				return i;
+			int c = classRef(owner);
+			int nt = nameAndType(name, descriptor);
+			bytes.u1(10);
+			bytes.u2(c);
+			bytes.u2(nt);
+			return add(key, 1);
+		}
+
+		private int nameAndType(String name, String descriptor) {
+			String key = "N" + name + ":" + descriptor;
+			Integer i = indices.get(key);
+			if (i != null)
+				return i;
+			int n = utf8(name), d = utf8(descriptor);
+			bytes.u1(12);
+			bytes.u2(n);
+			bytes.u2(d);
+			return add(key, 1);
+		}
+
+		int intConstant(int v) {
+			Integer i = indices.get("I" + v);
+			if (i != null)
+				return i;
+			bytes.u1(3);
+			bytes.u4(v);
+			return add("I" + v, 1);
+		}
+
+		/* Floats and doubles are identified by their bits, so that 0.0 and -0.0 are different constants. */
+		int floatConstant(float v) {
+			int bits = Float.floatToRawIntBits(v);
+			Integer i = indices.get("F" + bits);
+			if (i != null)
+				return i;
+			bytes.u1(4);
+			bytes.u4(bits);
+			return add("F" + bits, 1);
+		}
+
+		int doubleConstant(double v) {
+			long bits = Double.doubleToRawLongBits(v);
+			Integer i = indices.get("D" + bits);
+			if (i != null)
+				return i;
+			bytes.u1(6);
+			bytes.u4((int) (bits >>> 32));
+			bytes.u4((int) bits);
+			/* A double takes two entries. */
+			return add("D" + bits, 2);
+		}
+
+		private int add(String key, int size) {
+			int index = count;
+			count += size;
+			if (count > 0xFFFF)
+				throw new IllegalStateException("Too many constants for one class");
+			indices.put(key, index);
+			return index;
+		}
+
+		byte[] toByteArray() {
+			Bytes b = new Bytes();
+			b.u2(count);
+			b.bytes(bytes.toByteArray());
+			return b.toByteArray();
+		}
+	}
+
+	/** A growable big-endian byte buffer. */
+	private static final class Bytes {
+		private byte[] data = new byte[256];
+		private int size;
+
+		void u1(int v) {
+			if (size == data.length)
+				data = Arrays.copyOf(data, 2 * size);
+			data[size++] = (byte) v;
+		}
+
+		void u2(int v) {
+			u1(v >>> 8);
+			u1(v);
+		}
+
+		void u4(int v) {
+			u2(v >>> 16);
+			u2(v);
+		}
+
+		void bytes(byte[] b) {
+			if (size + b.length > data.length)
+				data = Arrays.copyOf(data, Math.max(2 * data.length, size + b.length));
+			System.arraycopy(b, 0, data, size, b.length);
+			size += b.length;
+		}
+
+		/** A modified UTF-8 string, as in DataOutput.writeUTF. The names written here are ASCII. */
+		void utf(String s) {
+			u2(s.length());
+			for (int i = 0; i < s.length(); i++)
+				u1(s.charAt(i));
+		}
+
+		int size() {
+			return size;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(data, size);
+		}
+	}
+}
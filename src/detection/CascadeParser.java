@@ -0,0 +1,252 @@
+package detection;
+
+import java.awt.Point;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Scanner;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads a Haar cascade from an OpenCV XML file with the JDK's streaming (StAX) parser.
+ *
+ * Each node and rectangle is appended to the tables of the Cascade as its elements are read: neither a document tree
+ * nor the Stage/Tree/Feature objects are built, so besides the tables only the values of the node being read are held.
+ * The result is the same as reading the file into a JDOM document and building the detector from it.
+ *
+ * Structure of the file (element depth on the left):
+ * <pre>
+ * 1 opencv_storage
+ * 2   (cascade name)          only the first one is read
+ * 3     size                  "width height"
+ * 3     stages
+ * 4       _                   a stage
+ * 5         trees
+ * 6           _               a tree
+ * 7             _             a node
+ * 8               feature
+ * 9                 rects
+ * 10                  _       "x y width height weight"
+ * 8               threshold, left_val or left_node, right_val or right_node
+ * 5         stage_threshold
+ * </pre>
+ */
+public class CascadeParser {
+
+	/**
+	 * Parses a cascade.
+	 * @param input The XML file (generated by OpenCV) describing the Haar cascade.
+	 * @return The compiled cascade.
+	 */
+	public static Cascade parse(InputStream input) throws XMLStreamException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		XMLStreamReader reader = factory.createXMLStreamReader(input);
+		try {
+			return new CascadeParser().read(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/* The cascade read so far, in the tables of Cascade, which grow as needed. */
+	private Point size;
+	private int nbStages, nbTrees, nbNodes, nbRects;
+	private int[] stageTreeStart = new int[32];
+	private float[] stageThreshold = new float[32];
+	private int[] treeNodeStart = new int[256];
+	private float[] nodeThreshold = new float[256];
+	private int[] nodeLeft = new int[256];
+	private int[] nodeRight = new int[256];
+	private float[] nodeLeftVal = new float[256];
+	private float[] nodeRightVal = new float[256];
+	private int[] nodeRectStart = new int[256];
+	private int[] rectX = new int[512];
+	private int[] rectY = new int[512];
+	private int[] rectW = new int[512];
+	private int[] rectH = new int[512];
+	private float[] rectWeight = new float[512];
+
+	/* The elements being read. */
+	private float stage_threshold;
+	private float threshold;
+	private float left_val, right_val;
+	private int left_node, right_node;
+	private boolean has_left_val, has_right_val;
+
+	/** Names of the open elements, by depth. */
+	private String[] path = new String[16];
+	private final StringBuilder text = new StringBuilder();
+
+	private CascadeParser() {
+	}
+
+	private Cascade read(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 0;
+		boolean cascadeRead = false;
+		while (reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				if (depth == path.length) {
+					String[] p = new String[2 * depth];
+					System.arraycopy(path, 0, p, 0, depth);
+					path = p;
+				}
+				path[depth] = reader.getLocalName();
+				text.setLength(0);
+				if (depth == 2 && cascadeRead) {
+					/* Only the first cascade of the file is read: skip the others. */
+					skip(reader);
+					depth--;
+				} else {
+					start(depth);
+				}
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+				text.append(reader.getText());
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				end(depth);
+				if (depth == 2)
+					cascadeRead = true;
+				depth--;
+				break;
+			default:
+				break;
+			}
+		}
+		if (size == null)
+			throw new XMLStreamException("No detector size in the cascade");
+		stageTreeStart[nbStages] = nbTrees;
+		treeNodeStart[nbTrees] = nbNodes;
+		nodeRectStart[nbNodes] = nbRects;
+		return new Cascade(size,
+				Arrays.copyOf(stageTreeStart, nbStages + 1),
+				Arrays.copyOf(stageThreshold, nbStages),
+				Arrays.copyOf(treeNodeStart, nbTrees + 1),
+				Arrays.copyOf(nodeThreshold, nbNodes),
+				Arrays.copyOf(nodeLeft, nbNodes),
+				Arrays.copyOf(nodeRight, nbNodes),
+				Arrays.copyOf(nodeLeftVal, nbNodes),
+				Arrays.copyOf(nodeRightVal, nbNodes),
+				Arrays.copyOf(nodeRectStart, nbNodes + 1),
+				Arrays.copyOf(rectX, nbRects),
+				Arrays.copyOf(rectY, nbRects),
+				Arrays.copyOf(rectW, nbRects),
+				Arrays.copyOf(rectH, nbRects),
+				Arrays.copyOf(rectWeight, nbRects));
+	}
+
+	/** Skips the element whose start was just read, with all its content. */
+	private static void skip(XMLStreamReader reader) throws XMLStreamException {
+		int open = 1;
+		while (open > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+				open++;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				open--;
+		}
+	}
+
+	private boolean in(int depth, String name) {
+		return name.equals(path[depth]);
+	}
+
+	private void start(int depth) {
+		if (depth == 4 && in(3, "stages")) {
+			/* The stage threshold comes after the trees: it is stored at the end of the stage. */
+			if (nbStages + 1 >= stageTreeStart.length) {
+				stageTreeStart = Arrays.copyOf(stageTreeStart, 2 * stageTreeStart.length);
+				stageThreshold = Arrays.copyOf(stageThreshold, 2 * stageThreshold.length);
+			}
+			stageTreeStart[nbStages] = nbTrees;
+			stage_threshold = 0;
+		} else if (depth == 6 && in(5, "trees")) {
+			if (nbTrees + 1 >= treeNodeStart.length)
+				treeNodeStart = Arrays.copyOf(treeNodeStart, 2 * treeNodeStart.length);
+			treeNodeStart[nbTrees] = nbNodes;
+		} else if (depth == 7 && in(5, "trees")) {
+			if (nbNodes + 1 >= nodeRectStart.length) {
+				int length = 2 * nodeRectStart.length;
+				nodeThreshold = Arrays.copyOf(nodeThreshold, length);
+				nodeLeft = Arrays.copyOf(nodeLeft, length);
+				nodeRight = Arrays.copyOf(nodeRight, length);
+				nodeLeftVal = Arrays.copyOf(nodeLeftVal, length);
+				nodeRightVal = Arrays.copyOf(nodeRightVal, length);
+				nodeRectStart = Arrays.copyOf(nodeRectStart, length);
+			}
+			nodeRectStart[nbNodes] = nbRects;
+			has_left_val = false;
+			has_right_val = false;
+			left_node = -1;
+			right_node = -1;
+			left_val = 0;
+			right_val = 0;
+		}
+	}
+
+	private void end(int depth) throws XMLStreamException {
+		String name = path[depth];
+		if (depth == 3 && name.equals("size")) {
+			/* Read the size (in pixels) of the detector. */
+			Scanner scanner = new Scanner(text.toString());
+			size = new Point(scanner.nextInt(), scanner.nextInt());
+		} else if (depth == 10 && in(9, "rects") && in(5, "trees")) {
+			/* "x y width height weight", as in Rect.fromString. */
+			String[] tab = text.toString().trim().split(" ");
+			if (nbRects == rectX.length) {
+				int length = 2 * rectX.length;
+				rectX = Arrays.copyOf(rectX, length);
+				rectY = Arrays.copyOf(rectY, length);
+				rectW = Arrays.copyOf(rectW, length);
+				rectH = Arrays.copyOf(rectH, length);
+				rectWeight = Arrays.copyOf(rectWeight, length);
+			}
+			rectX[nbRects] = Integer.parseInt(tab[0]);
+			rectY[nbRects] = Integer.parseInt(tab[1]);
+			rectW[nbRects] = Integer.parseInt(tab[2]);
+			rectH[nbRects] = Integer.parseInt(tab[3]);
+			rectWeight[nbRects] = Float.parseFloat(tab[4]);
+			nbRects++;
+		} else if (depth == 8 && in(5, "trees")) {
+			if (name.equals("threshold")) {
+				threshold = Float.parseFloat(text.toString());
+			} else if (name.equals("left_val")) {
+				left_val = Float.parseFloat(text.toString());
+				has_left_val = true;
+			} else if (name.equals("right_val")) {
+				right_val = Float.parseFloat(text.toString());
+				has_right_val = true;
+			} else if (name.equals("left_node")) {
+				left_node = Integer.parseInt(text.toString().trim());
+			} else if (name.equals("right_node")) {
+				right_node = Integer.parseInt(text.toString().trim());
+			}
+		} else if (depth == 7 && in(5, "trees")) {
+			if (size == null)
+				throw new XMLStreamException("The detector size must come before the stages");
+			/* Tree-local node indices become global ones. */
+			int root = treeNodeStart[nbTrees];
+			nodeThreshold[nbNodes] = threshold;
+			nodeLeft[nbNodes] = has_left_val ? -1 : root + left_node;
+			nodeRight[nbNodes] = has_right_val ? -1 : root + right_node;
+			nodeLeftVal[nbNodes] = left_val;
+			nodeRightVal[nbNodes] = right_val;
+			nbNodes++;
+		} else if (depth == 6 && in(5, "trees")) {
+			nbTrees++;
+		} else if (depth == 5 && name.equals("stage_threshold") && in(3, "stages")) {
+			stage_threshold = Float.parseFloat(text.toString());
+		} else if (depth == 4 && in(3, "stages")) {
+			stageThreshold[nbStages] = stage_threshold;
+			nbStages++;
+		}
+	}
+}
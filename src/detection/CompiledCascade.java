@@ -0,0 +1,38 @@
+package detection;
+
+import java.lang.invoke.MethodHandles;
+
+/**
+ * The cascade compiled to bytecode for one scale, see DetectorConfig.withCompiledCascade.
+ *
+ * Implementations are hidden classes generated by CascadeCompiler, in which every feature of every stage is straight-line
+ * code: the rectangle offsets, weights, thresholds and leaf values are constants instead of table reads.
+ */
+abstract class CompiledCascade {
+	/**
+	 * Runs the cascade on a window, exactly like ScaledCascade.depth does.
+	 * @param grayImage The integral image, row-major.
+	 * @param base The index of the top-left corner of the window in the integral images.
+	 * @param vnorm The normalization of the window.
+	 * @return The number of stages passed by the window.
+	 */
+	abstract int depth(int[] grayImage, int base, double vnorm);
+
+	/**
+	 * Compiles the cascade of a scale.
+	 * @param level The scale, whose offset tables are computed.
+	 * @return The compiled cascade, or null if the class could not be defined: windows are then evaluated from the tables.
+	 */
+	static CompiledCascade compile(ScaledCascade level) {
+		byte[] bytes = new CascadeCompiler(level).toByteArray();
+		try {
+			Class<?> c = MethodHandles.lookup().defineHiddenClass(bytes, true).lookupClass();
+			return (CompiledCascade) c.getDeclaredConstructor().newInstance();
+		} catch (LinkageError e) {
+			/* The class was refused, e.g. by the verifier of this JVM. */
+			return null;
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -6,14 +6,16 @@ import java.awt.image.BufferedImage;
 import java.awt.Point;
 import java.io.*;
 
-import org.jdom2.*;
-import org.jdom2.input.*;
-
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Iterator;
-import java.util.Scanner;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
 
 import javax.imageio.ImageIO;
 
@@ -24,25 +26,58 @@ import javax.imageio.ImageIO;
  *
  */
 public class Detector {
-	/** The list of classifiers that the test image should pass to be considered as an image.*/
-	private List<Stage> stages;
-	private Point size;
-	public static float baseScale; 
-	
+	/** The classifiers that the test image should pass to be considered as an image, compiled into flat tables.
+	 * The cascade is never modified, so it is shared by all the detectors derived from this one.*/
+	private final Cascade cascade;
+	private final Point size;
+	/** The scan parameters used by getFaces(BufferedImage). */
+	private final DetectorConfig config;
+	/** Pool used to scan the windows of an image in parallel, or null to scan them sequentially. */
+	private final ForkJoinPool pool;
+	/** Evaluates several windows at once with vector instructions, or null if they are evaluated one by one. */
+	private final BatchEvaluator batch;
+	/** The per-scale tables of the scans run so far, by image size and scan parameters. */
+	private final ConcurrentHashMap<PlanKey,ScanPlan> plans = new ConcurrentHashMap<PlanKey,ScanPlan>();
+	/** Scratch buffers, one set per scoring thread. */
+	private final ThreadLocal<ScoringContext> contexts = new ThreadLocal<ScoringContext>() {
+		@Override
+		protected ScoringContext initialValue() {
+			return new ScoringContext();
+		}
+	};
+	/** Window caches, one per scoring thread, created the first time the thread scans with the cache on. */
+	private final ThreadLocal<WindowCache> caches = new ThreadLocal<WindowCache>();
+	/** All the window caches, for their statistics. */
+	private final List<WindowCache> allCaches = new CopyOnWriteArrayList<WindowCache>();
+	/** Scan counters, one per scoring thread, created the first time the thread scans with instrumentation on. */
+	private final ThreadLocal<ScanCounters> counters = new ThreadLocal<ScanCounters>();
+	private final List<ScanCounters> allCounters = new CopyOnWriteArrayList<ScanCounters>();
+
+	/** Maximum number of scan plans kept, should the parameters keep changing. */
+	private static final int MAX_PLANS = 32;
+
 	/**Factory method. Builds a detector from an XML file.
 	 * @param filename The XML file (generated by OpenCV) describing the Haar Cascade.
 	 * @return The corresponding detector.
 	 */
 	public static Detector create(String filename) {
 		/* Read XML file */ 
-		org.jdom2.Document document=null;
-		SAXBuilder sxb = new SAXBuilder();
 		try
 		{
-			document = sxb.build(new File(filename));
+			InputStream input = new FileInputStream(filename);
+			try
+			{
+				return new Detector(CascadeParser.parse(input),DetectorConfig.DEFAULT,1);
+			}
+			finally
+			{
+				input.close();
+			}
+		}
+		catch(Exception e)
+		{
+			throw new IllegalArgumentException("Cannot read the cascade "+filename,e);
 		}
-		catch(Exception e){e.printStackTrace();}
-		return new Detector(document);
 	}
 	
 	/**
@@ -51,95 +86,119 @@ public class Detector {
 	 */
 	public static Detector create(InputStream input) {
 		/* Read XML file */ 
-		org.jdom2.Document document=null;
-		SAXBuilder sxb = new SAXBuilder();
 		try
 		{
-			document = sxb.build(input);
+			return new Detector(CascadeParser.parse(input),DetectorConfig.DEFAULT,1);
+		}
+		catch(Exception e)
+		{
+			throw new IllegalArgumentException("Cannot read the cascade",e);
 		}
-		catch(Exception e){e.printStackTrace();}
-		return new Detector(document);
 	}
 	
 	/** Detector constructor.
 	 * Builds, from a XML document (i.e. the result of parsing an XML file, the corresponding Haar cascade.
+	 * The factory methods stream the XML file instead, and do not need JDOM.
 	 * @param document The XML document (parsing of file generated by OpenCV) describing the Haar cascade.
 	 */
-	@SuppressWarnings({ "resource", "rawtypes" })
 	public Detector(org.jdom2.Document document)
 	{
-		/* The detector is constituted by stages, each of them telling whether the considered zone represents the object
-		 * with probability a bit greater than 0.5. If a zone passes all stages, it is considered as representing the object.*/
-		stages=new LinkedList<Stage>();
+		this(JdomCascadeReader.read(document),DetectorConfig.DEFAULT,1);
+	}
+
+	/**
+	 * Builds a detector from a compiled cascade.
+	 * @param cascade The cascade, which may be shared with other detectors.
+	 * @param config The scan parameters.
+	 * @param threads The number of threads used to scan a single image, 1 for a sequential scan.
+	 */
+	public Detector(Cascade cascade, DetectorConfig config, int threads)
+	{
+		this.cascade=cascade;
+		this.size=cascade.size;
+		this.config=config;
+		this.pool= threads>1 ? getPool(threads) : null;
+		this.batch=BatchEvaluator.get(cascade);
+	}
 
-		/* Read the size (in pixels) of the detector. */
-		Element racine = (Element) document.getRootElement().getChildren().get(0);
-		Scanner scanner = new Scanner(racine.getChild("size").getText());
-		size = new Point(scanner.nextInt(),scanner.nextInt());
+	/** ForkJoin pools of the parallel detectors, by number of threads. They live as long as the application. */
+	private static final ConcurrentHashMap<Integer,ForkJoinPool> pools=new ConcurrentHashMap<Integer,ForkJoinPool>();
 
-		/* Iterate over the stages nodes to read the stages. */
-		Iterator it=racine.getChild("stages").getChildren("_").iterator();
-		while(it.hasNext())
+	/**
+	 * @return The pool shared by the detectors with this number of threads, created on first use. Derived detectors
+	 *         (withConfig, withStages...) thus reuse the pool of the detector they come from instead of starting threads.
+	 */
+	private static ForkJoinPool getPool(int threads)
+	{
+		ForkJoinPool pool=pools.get(threads);
+		if(pool==null)
 		{
-			Element stage=(Element)it.next();
-			/* Read the stage threshold. */
-			float thres=Float.parseFloat(stage.getChild("stage_threshold").getText());
-
-			/*Read all trees of the stage. */
-			Iterator it2=stage.getChild("trees").getChildren("_").iterator();
-			Stage st=new Stage(thres);
-			while(it2.hasNext())
+			pool=new ForkJoinPool(threads);
+			ForkJoinPool other=pools.putIfAbsent(threads,pool);
+			if(other!=null)
 			{
-				Element tree = ((Element)it2.next());
-				Tree t = new Tree();
-				Iterator it4 = tree.getChildren("_").iterator();
-				while(it4.hasNext())
-				{
-					Element feature=(Element) it4.next();
-					float thres2=Float.parseFloat(feature.getChild("threshold").getText());
-					int left_node=-1;
-					float left_val = 0;
-					boolean has_left_val =false;
-					int right_node=-1;
-					float right_val = 0;
-					boolean has_right_val =false;
-					Element e;
-					if((e=feature.getChild("left_val"))!=null)
-					{
-						left_val = Float.parseFloat(e.getText());
-						has_left_val=true;
-					}
-					else
-					{
-						left_node = Integer.parseInt(feature.getChild("left_node").getText());
-						has_left_val=false;
-					}
-
-					if((e=feature.getChild("right_val"))!=null)
-					{
-						right_val = Float.parseFloat(e.getText());
-						has_right_val=true;
-					}
-					else
-					{
-						right_node = Integer.parseInt(feature.getChild("right_node").getText());
-						has_right_val=false;
-					}
-					Feature f = new Feature(thres2,left_val,left_node,has_left_val,right_val,right_node,has_right_val,size);
-					Iterator it3=feature.getChild("feature").getChild("rects").getChildren("_").iterator();
-					while(it3.hasNext())
-					{
-						String s = ((Element) it3.next()).getText().trim();
-						Rect r = Rect.fromString(s);
-						f.add(r);
-					}
-
-					t.addFeature(f);
-				}
-				st.addTree(t);
+				pool.shutdown();
+				pool=other;
 			}
-			stages.add(st);
 		}
+		return pool;
+	}
+
+	/**
+	 * Returns a detector sharing this detector's cascade, with other scan parameters. The cascade is not loaded again.
+	 * @param config The scan parameters.
+	 */
+	public Detector withConfig(DetectorConfig config)
+	{
+		return new Detector(cascade,config,getParallelism());
+	}
+
+	/**
+	 * Returns a detector sharing this detector's cascade and scan parameters, which scans each image with the given
+	 * number of threads. With more than one thread, the columns of windows of all scales are spread across a ForkJoin
+	 * pool shared by all the detectors with that number of threads. The score is the same as with a sequential scan.
+	 * @param threads The number of threads, 1 (or less) for a sequential scan.
+	 */
+	public Detector withParallelism(int threads)
+	{
+		return new Detector(cascade,config,threads);
+	}
+
+	/**
+	 * Returns a detector with the same scan parameters which only runs the first stages of the cascade: a cheaper,
+	 * coarser score. A window's score is then the fraction of those stages it passed, so scores of detectors with
+	 * different numbers of stages should not be compared. The detector has its own plans and caches, and the results of
+	 * this detector are not current for it.
+	 * @param stages The number of stages, at least 1. Above the number of stages of the cascade, all stages are run.
+	 * @see Cascade#withStages(int)
+	 */
+	public Detector withStages(int stages)
+	{
+		return new Detector(cascade.withStages(stages),config,getParallelism());
+	}
+
+	/**
+	 * @return The scan parameters used by getFaces(BufferedImage).
+	 */
+	public DetectorConfig getConfig()
+	{
+		return config;
+	}
+
+	/**
+	 * @return The number of threads used to scan a single image.
+	 */
+	public int getParallelism()
+	{
+		return pool==null ? 1 : pool.getParallelism();
+	}
+
+	/**
+	 * @return The compiled cascade of this detector.
+	 */
+	public Cascade getCascade()
+	{
+		return cascade;
 	}
 
 	/** Returns the list of detected objects in an image applying the Viola-Jones algorithm.
@@ -165,223 +224,926 @@ public class Detector {
 	}
 	
 	/**
-	 * performs detection with default parameters
+	 * performs detection with the detector's parameters
 	 * @param image the Image to scan
 	 * @return The fitness score
 	 */
 	public float getFaces(BufferedImage image){
-		return getFaces(image,
-				baseScale, // The initial ratio between the window size and the Haar classifier size (default 2).
-				1.1f, //The scale increment of the window size, at each step (default 1.25).
-				.05f, //The shift of the window at each sub-step, in terms of percentage of the window size.
-				0, //min neighbours
-				true
-				);
+		return getFaces(image,config);
 	}
 
-	
-	
 	/**
 	 * Scans the image and returns the fitness score
 	 */
 	public float getFaces(BufferedImage image,float baseScale, float scale_inc,float increment, int min_neighbors,boolean doCannyPruning)
 	{
-		//StopWatch sw = new StopWatch();
-		//sw.start();
-		List<Rectangle> ret=new ArrayList<Rectangle>();
-		List<Float> scores = new ArrayList<Float>();
-		int width=image.getWidth();
-		int height=image.getHeight();
-		/* Compute the max scale of the detector, i.e. the size of the image divided by the size of the detector. */
-		float maxScale = (Math.min((width+0.f)/size.x,(height+0.0f)/size.y));
+		return getFaces(image,config.withBaseScale(baseScale).withScaleInc(scale_inc).withIncrement(increment)
+				.withCannyPruning(doCannyPruning));
+	}
+
+	/**
+	 * Scans the image and returns the fitness score.
+	 * This can be called by several threads at once: each thread gets its own scratch buffers.
+	 * @param image the Image to scan
+	 * @param config the scan parameters
+	 * @return The fitness score
+	 */
+	public float getFaces(BufferedImage image,DetectorConfig config)
+	{
+		ScoringContext ctx=contexts.get();
+		ScanPlan p=load(ctx,image,config);
+
+		/* The score of a window is the fraction of the stages it passed (1 if it passed them all), so the fitness is the
+		 * total number of stages passed over all windows, divided by the number of stages. */
+		ScanCounters stats=getCounters(config);
+		long start=stats!=null ? System.nanoTime() : 0;
+		long depths=scan(p,ctx,null);
+		if(stats!=null)
+			stats.scanNanos+=System.nanoTime()-start;
+		return (float)((double)depths/cascade.nbStages);
+	}
+
+	/**
+	 * Scans the image with the detector's parameters, and keeps the depth reached by every window so that images derived
+	 * from this one can be rescanned incrementally.
+	 * @param image the Image to scan
+	 * @return The scan result, whose score is the one getFaces() would return.
+	 */
+	public ScanResult scan(BufferedImage image)
+	{
+		return scan(image,true);
+	}
 
+	/**
+	 * Scores a batch of images with the detector's parameters.
+	 * @param images the images to scan
+	 * @return The score of each image, in order.
+	 */
+	public float[] getFaces(List<BufferedImage> images)
+	{
+		ScanResult[] results=scan(images);
+		float[] scores=new float[results.length];
+		for(int k=0;k<results.length;k++)
+			scores[k]=results[k].getScore();
+		return scores;
+	}
 
+	/**
+	 * Scans a batch of images with the detector's parameters.
+	 *
+	 * The images are spread across the detector's pool, or the common ForkJoin pool if the detector scans images
+	 * sequentially: each thread scans whole images with its own buffers, which is cheaper than splitting each image
+	 * across the threads. The results are the ones scan() would give.
+	 * @param images the images to scan
+	 * @return The scan result of each image, in order.
+	 */
+	public ScanResult[] scan(List<BufferedImage> images)
+	{
+		BufferedImage[] batch=images.toArray(new BufferedImage[images.size()]);
+		ScanResult[] results=new ScanResult[batch.length];
+		if(batch.length==1)
+			results[0]=scan(batch[0]);
+		else if(batch.length>1)
+			(pool!=null ? pool : ForkJoinPool.commonPool()).invoke(new BatchTask(batch,results,0,batch.length));
+		return results;
+	}
 
+	/**
+	 * Scans an image with the detector's parameters.
+	 * @param parallel whether the windows may be spread across the pool
+	 */
+	private ScanResult scan(BufferedImage image, boolean parallel)
+	{
+		if(cascade.nbStages>Byte.MAX_VALUE)
+			throw new UnsupportedOperationException("Too many stages to record the depths of the windows");
+		ScoringContext ctx=contexts.get();
+		ScanPlan p=load(ctx,image,config);
+		byte[] depths=new byte[p.getWindowCount()];
+		ScanCounters stats=getCounters(config);
+		long start=stats!=null ? System.nanoTime() : 0;
+		long total=parallel ? scan(p,ctx,depths) : scan(p,ctx,depths,0,p.columnLevel.length);
+		if(stats!=null)
+			stats.scanNanos+=System.nanoTime()-start;
+		int evaluated=0;
+		for(byte d : depths)
+			if(d!=ScanResult.PRUNED)
+				evaluated++;
+		return new ScanResult(p,depths,total,evaluated,cascade.nbStages);
+	}
 
-		/* Compute the grayscale image, the integral image and the squared integral image.*/
-		int[][] grayImage=new int[width][height];
-		int[][] img = new int[width][height];
-		int[][] squares=new int[width][height];
-		for(int i=0;i<width;i++)
+	/**
+	 * Scans an image which only differs from an already scanned one inside a given region.
+	 *
+	 * Only the windows whose result may depend on a pixel of the region are evaluated again: the others keep the depth they
+	 * had in the previous result. With Canny pruning, the edge density of a window depends on the pixels up to 3 pixels
+	 * around it (gaussian filter then gradient), so the region is widened accordingly. The score is the one a full scan
+	 * of the image would give.
+	 * @param image the Image to scan
+	 * @param previous the result of the scan of the image it was derived from, by this detector
+	 * @param dirty the region where the pixels of the two images may differ, or null if they do not differ at all
+	 * @return The scan result of the image.
+	 */
+	public ScanResult rescan(BufferedImage image, ScanResult previous, Rectangle dirty)
+	{
+		ScoringContext ctx=contexts.get();
+		ScanPlan p=getPlan(image.getWidth(),image.getHeight(),config);
+		if(previous==null || previous.plan!=p)
+			return scan(image);
+		if(dirty!=null)
+			dirty=dirty.intersection(new Rectangle(0,0,p.width,p.height));
+		if(dirty==null || dirty.isEmpty())
+			return previous;
+
+		load(ctx,image,config);
+		WindowCache cache=getCache(config);
+		ScanCounters stats=getCounters(config);
+		long start=stats!=null ? System.nanoTime() : 0;
+		int margin=config.isCannyPruning() ? 3 : 0;
+		int x0=dirty.x-margin, x1=dirty.x+dirty.width-1+margin;
+		int y0=dirty.y-margin, y1=dirty.y+dirty.height-1+margin;
+
+		byte[] depths=previous.depths.clone();
+		long total=previous.total;
+		int evaluated=0;
+		for(int c=0;c<p.columnLevel.length;c++)
 		{
-			int col=0;
-			int col2=0;
-			for(int j=0;j<height;j++)
+			int k=p.columnLevel[c];
+			ScaledCascade level=p.levels[k];
+			int i=p.columnX[c];
+			int size=level.size;
+			/* A window reads the integral images from its corner (i,j) to (i+size,j+size). */
+			if(i>x1 || i+size<x0)
+				continue;
+			int w=p.columnStart[c];
+			for(int j=p.top;j<p.bottom-size;j+=level.step,w++)
 			{
-				int c = image.getRGB(i,j);
-				int  red = (c & 0x00ff0000) >> 16;
-			int  green = (c & 0x0000ff00) >> 8;
-			int  blue = c & 0x000000ff;
-			int value=(30*red +59*green +11*blue)/100;
-			img[i][j]=value;
-			grayImage[i][j]=(i>0?grayImage[i-1][j]:0)+col+value;
-			squares[i][j]=(i>0?squares[i-1][j]:0)+col2+value*value;
-			col+=value;
-			col2+=value*value;
+				if(j>y1 || j+size<y0)
+					continue;
+				int d=window(p,k,ctx,cache,stats,i,j);
+				total+=Math.max(d,0)-Math.max(depths[w],0);
+				depths[w]=(byte)d;
+				evaluated++;
 			}
 		}
+		if(stats!=null)
+			stats.scanNanos+=System.nanoTime()-start;
+		return new ScanResult(p,depths,total,evaluated,cascade.nbStages);
+	}
 
-		/* Eventually compute the gradient of the image, if option is on. */
-		int[][] canny = null;
-		if(doCannyPruning)
-			canny = CannyPruner.getIntegralCanny(img);
+	/**
+	 * Scans an image, as rescan does, unless its score cannot reach a given score: the scan stops as soon as the windows
+	 * evaluated so far score too low for the image to reach it, even if all the remaining windows passed the whole
+	 * cascade. The rejection is exact.
+	 * @param image the Image to scan
+	 * @param previous the result of the scan of the image it was derived from, by this detector, or null
+	 * @param dirty the region where the pixels of the two images may differ, or null if they do not differ at all
+	 * @param mustBeat the score the image has to reach
+	 * @return The exact scan result, or the bounds of the score of a rejected image.
+	 */
+	public ScanEstimate scanToBeat(BufferedImage image, ScanResult previous, Rectangle dirty, double mustBeat)
+	{
+		ScoringContext ctx=contexts.get();
+		ScanPlan p=getPlan(image.getWidth(),image.getHeight(),config);
+		if(previous!=null && previous.plan!=p)
+			previous=null;
+		if(previous!=null && dirty!=null)
+			dirty=dirty.intersection(new Rectangle(0,0,p.width,p.height));
+		if(previous!=null && (dirty==null || dirty.isEmpty()))
+			return new ScanEstimate(previous);
+
+		load(ctx,image,config);
+		WindowCache cache=getCache(config);
+		ScanCounters stats=getCounters(config);
+		long start=stats!=null ? System.nanoTime() : 0;
+		int margin=config.isCannyPruning() ? 3 : 0;
 
-		/*Heart of the algorithm : detection */
-		/*For each scale of the detection window */
-		for(float scale=baseScale;scale<maxScale;scale*=scale_inc)
+		/* The windows to evaluate are those which may depend on the region (see rescan), or all of them. The total of
+		 * the others is known; each window left to evaluate may add up to nbStages to it. */
+		byte[] depths=previous!=null ? previous.depths.clone() : new byte[p.getWindowCount()];
+		long total=previous!=null ? previous.total : 0;
+		int remaining=0;
+		for(int c=0;c<p.columnLevel.length;c++)
 		{
+			ScaledCascade level=p.levels[p.columnLevel[c]];
+			int i=p.columnX[c];
+			int size=level.size;
+			if(previous!=null && (i>dirty.x+dirty.width-1+margin || i+size<dirty.x-margin))
+				continue;
+			int w=p.columnStart[c];
+			for(int j=p.top;j<p.bottom-size;j+=level.step,w++)
+			{
+				if(previous!=null && (j>dirty.y+dirty.height-1+margin || j+size<dirty.y-margin))
+					continue;
+				total-=Math.max(depths[w],0);
+				remaining++;
+			}
+		}
 
-			/*Compute the sliding step of the window*/
-			int step=(int) (scale*size.x*increment);
-			int size=(int) (scale*this.size.x);
-			/*For each position of the window on the image, check whether the object is detected there.*/
-			for(int i=0;i<width-size;i+=step)
+		int nbStages=cascade.nbStages;
+		int evaluated=0;
+		for(int c=0;c<p.columnLevel.length;c++)
+		{
+			int k=p.columnLevel[c];
+			ScaledCascade level=p.levels[k];
+			int i=p.columnX[c];
+			int size=level.size;
+			if(previous!=null && (i>dirty.x+dirty.width-1+margin || i+size<dirty.x-margin))
+				continue;
+			int w=p.columnStart[c];
+			for(int j=p.top;j<p.bottom-size;j+=level.step,w++)
 			{
-				for(int j=0;j<height-size;j+=step)
+				if(previous!=null && (j>dirty.y+dirty.height-1+margin || j+size<dirty.y-margin))
+					continue;
+				long best=total+(long)(remaining-evaluated)*nbStages;
+				if(score(best,nbStages)<mustBeat)
 				{
-					/* If Canny pruning is on, compute the edge density of the zone.
-					 * If it is too low, the object should not be there so skip the region.*/
-					if(doCannyPruning)
-					{
-						int edges_density = canny[i+size][j+size]+canny[i][j]-canny[i][j+size]-canny[i+size][j];
-						int d = edges_density/size/size;
-						if(d<20||d>100)
-							continue;
-					}
+					if(stats!=null)
+						stats.scanNanos+=System.nanoTime()-start;
+					return new ScanEstimate(score(best,nbStages),score(total,nbStages),score(best,nbStages),evaluated,p.getWindowCount());
+				}
+				int d=window(p,k,ctx,cache,stats,i,j);
+				total+=Math.max(d,0);
+				depths[w]=(byte)d;
+				evaluated++;
+			}
+		}
+		if(stats!=null)
+			stats.scanNanos+=System.nanoTime()-start;
+		return new ScanEstimate(new ScanResult(p,depths,total,evaluated,nbStages));
+	}
 
+	/**
+	 * @return The score of a total depth, rounded as ScanResult.getScore rounds it, so that bounds compare as scores do.
+	 */
+	private static float score(long total,int nbStages)
+	{
+		return (float)((double)total/nbStages);
+	}
 
+	/** Windows evaluated before the first look at the confidence interval, at least. */
+	private static final int MIN_SAMPLE=16;
+	/** Fraction of the windows evaluated before the first look at the confidence interval, at least. */
+	private static final int SAMPLE_DIVISOR=32;
 
-					boolean pass=true;
-					/* Perform each stage of the detector on the window. If one stage fails, the zone is rejected.*/
-					float depth = 0;
-					for(Stage s:stages)
-					{
-						if(!s.pass(grayImage,squares,i,j,scale)) //if a stage is failed, stop and record score
-						{
-							pass=false;
-							Float score = depth/stages.size(); 
-							scores.add(score); //record maximum depth of the cascade classifier
-							break;
-						}
-						depth += 1;
-					}
-					/* If the window passed all stages, record score as 1. */
-					if(pass) {
-						ret.add(new Rectangle(i,j,size,size));
-						scores.add(1f);
-					}
+	/**
+	 * Scans an image, as rescan does, unless its score is very likely below a threshold: the image is then rejected after
+	 * the cascade was run on a sample of its windows.
+	 *
+	 * The score is the sum of the scores of the windows, so it is estimated from a random sample of the windows to
+	 * evaluate, stratified by scale: the windows of each scale are sampled in proportion to their number. The sample
+	 * starts at a few percent of the windows, and doubles while the confidence interval of the estimate contains the
+	 * threshold. When the interval lies below the threshold, the image is rejected; when it lies above, or all the
+	 * windows have been evaluated, the remaining windows are evaluated and the result is exact. The rejection is only
+	 * statistical: a rejected image may be above the threshold. The interval assumes a normal estimate, which small
+	 * samples of skewed depths are not, so this happens more often than its width suggests; see scanToBeat for an exact
+	 * rejection.
+	 * @param image the Image to scan
+	 * @param previous the result of the scan of the image it was derived from, by this detector, or null
+	 * @param dirty the region where the pixels of the two images may differ, or null if they do not differ at all
+	 * @param threshold the score the image has to reach
+	 * @param z the half-width of the confidence interval, in standard deviations of the estimate (e.g. 3 for about 99.7%)
+	 * @return The exact scan result, or the estimate of a rejected image.
+	 */
+	public ScanEstimate scanAbove(BufferedImage image, ScanResult previous, Rectangle dirty, double threshold, double z)
+	{
+		ScoringContext ctx=contexts.get();
+		ScanPlan p=getPlan(image.getWidth(),image.getHeight(),config);
+		if(previous!=null && previous.plan!=p)
+			previous=null;
+		if(previous!=null && dirty!=null)
+			dirty=dirty.intersection(new Rectangle(0,0,p.width,p.height));
+		if(previous!=null && (dirty==null || dirty.isEmpty()))
+			return new ScanEstimate(previous);
+
+		load(ctx,image,config);
+		WindowCache cache=getCache(config);
+		ScanCounters stats=getCounters(config);
+		long start=stats!=null ? System.nanoTime() : 0;
+
+		/* The windows to evaluate, by scale: all of them, or those which may depend on the region (see rescan). The
+		 * others keep their depth, and their total is known. */
+		byte[] depths=previous!=null ? previous.depths.clone() : new byte[p.getWindowCount()];
+		long known=previous!=null ? previous.total : 0;
+		int margin=config.isCannyPruning() ? 3 : 0;
+		int levels=p.levels.length;
+		int[][] todo=new int[levels][];
+		int[][] todoColumn=new int[levels][];
+		int[] count=new int[levels];
+		for(int k=0;k<levels;k++)
+		{
+			todo[k]=new int[16];
+			todoColumn[k]=new int[16];
+		}
+		int remaining=0;
+		for(int c=0;c<p.columnLevel.length;c++)
+		{
+			int k=p.columnLevel[c];
+			ScaledCascade level=p.levels[k];
+			int i=p.columnX[c];
+			int size=level.size;
+			if(previous!=null && (i>dirty.x+dirty.width-1+margin || i+size<dirty.x-margin))
+				continue;
+			int w=p.columnStart[c];
+			for(int j=p.top;j<p.bottom-size;j+=level.step,w++)
+			{
+				if(previous!=null && (j>dirty.y+dirty.height-1+margin || j+size<dirty.y-margin))
+					continue;
+				known-=Math.max(depths[w],0);
+				if(count[k]==todo[k].length)
+				{
+					todo[k]=Arrays.copyOf(todo[k],2*count[k]);
+					todoColumn[k]=Arrays.copyOf(todoColumn[k],2*count[k]);
 				}
+				todo[k][count[k]]=w;
+				todoColumn[k][count[k]]=c;
+				count[k]++;
+				remaining++;
 			}
+		}
+
+		/* Sums and sums of squares of the depths sampled at each scale. */
+		int[] sampled=new int[levels];
+		long[] sum=new long[levels];
+		long[] squares=new long[levels];
+		int evaluated=0;
+		int target=Math.max(MIN_SAMPLE,remaining/SAMPLE_DIVISOR);
+		Random random=ThreadLocalRandom.current();
+		double nbStages=cascade.nbStages;
+		while(evaluated<remaining)
+		{
+			/* Extend the sample of each scale to its share of the target, drawing windows at random among the ones
+			 * left (the first sampled[k] entries of todo[k] are the ones drawn so far). */
+			for(int k=0;k<levels;k++)
+			{
+				int share=(int)Math.min(count[k],((long)target*count[k]+remaining-1)/remaining);
+				for(;sampled[k]<share;sampled[k]++)
+				{
+					int n=sampled[k];
+					int pick=n+random.nextInt(count[k]-n);
+					int w=todo[k][pick], c=todoColumn[k][pick];
+					todo[k][pick]=todo[k][n];
+					todoColumn[k][pick]=todoColumn[k][n];
+					todo[k][n]=w;
+					todoColumn[k][n]=c;
+					int d=window(p,k,ctx,cache,stats,p.columnX[c],p.top+(w-p.columnStart[c])*p.levels[k].step);
+					depths[w]=(byte)d;
+					d=Math.max(d,0);
+					sum[k]+=d;
+					squares[k]+=d*d;
+					evaluated++;
+				}
+			}
+			if(evaluated==remaining)
+				break;
 
+			/* The stratified estimate of the total depth, and its variance. A scale with fewer than 2 windows sampled
+			 * gets the largest variance a depth can have. */
+			double estimate=known, variance=0;
+			for(int k=0;k<levels;k++)
+			{
+				int n=sampled[k], N=count[k];
+				if(N==0 || n==N)
+				{
+					estimate+=sum[k];
+					continue;
+				}
+				double s2=n>=2 ? Math.max(0,(squares[k]-(double)sum[k]*sum[k]/n)/(n-1)) : nbStages*nbStages/4;
+				estimate+=n>0 ? (double)N*sum[k]/n : N*nbStages/2;
+				variance+=(double)N*N*(1-(double)n/N)*s2/Math.max(n,1);
+			}
+			/* The scores of the windows left to evaluate are bounded, so the estimate cannot exceed what the image would
+			 * score if they all passed the whole cascade. */
+			long best=known+(long)(remaining-evaluated)*cascade.nbStages;
+			for(int k=0;k<levels;k++)
+				best+=sum[k];
+			double lower=(estimate-z*Math.sqrt(variance))/nbStages;
+			double upper=Math.min((estimate+z*Math.sqrt(variance))/nbStages,score(best,cascade.nbStages));
+			if(upper<threshold)
+			{
+				if(stats!=null)
+					stats.scanNanos+=System.nanoTime()-start;
+				return new ScanEstimate(estimate/nbStages,lower,upper,evaluated,p.getWindowCount());
+			}
+			if(lower>threshold)
+				target=remaining;
+			else
+				target=Math.min(remaining,2*target);
 		}
-		
-		//sum together scores
-		float score = 0;
-		for (float f: scores){
-			score += f;
+
+		long total=known;
+		for(int k=0;k<levels;k++)
+			total+=sum[k];
+		if(stats!=null)
+			stats.scanNanos+=System.nanoTime()-start;
+		return new ScanEstimate(new ScanResult(p,depths,total,evaluated,cascade.nbStages));
+	}
+
+	/**
+	 * @param result a scan result, or null
+	 * @return true if the result was computed with this detector's cascade and parameters, so that it can be reused
+	 */
+	public boolean isCurrent(ScanResult result)
+	{
+		return result!=null && result.plan==getPlan(result.plan.width,result.plan.height,config);
+	}
+
+	/**
+	 * Sums up the use of the window caches of this detector, over all the threads which scored images with the cache on.
+	 * The counters are those of the caches of this detector: derived detectors (see withConfig) have their own caches.
+	 * @return The statistics of the caches.
+	 */
+	public WindowCacheStats getWindowCacheStats()
+	{
+		long capacity=0, entries=0, hits=0, misses=0, evictions=0, memory=0;
+		for(WindowCache c : allCaches)
+		{
+			capacity+=c.getCapacity();
+			entries+=c.entries;
+			hits+=c.hits;
+			misses+=c.misses;
+			evictions+=c.evictions;
+			memory+=c.getMemory();
 		}
-		
-		return score;
+		return new WindowCacheStats(allCaches.size(),capacity,entries,hits,misses,evictions,memory);
 	}
 
-	/** Merge the raw detections resulting from the detection step to avoid multiple detections of the same object.
-	 * A threshold on the minimum numbers of rectangles that need to be merged for the resulting detection to be kept can be given,
-	 * to lower the rate of false detections.
-	 * Two rectangles need to be merged if they overlap enough.
-	 * @param rects The raw detections returned by the detection algorithm.
-	 * @param min_neighbors The minimum number of rectangles needed for the corresponding detection to be kept.
-	 * @return The merged rectangular detections.
+	/**
+	 * Sums up the scan counters of this detector, over all the threads which scored images with instrumentation on.
+	 * Derived detectors (see withConfig) have their own counters.
+	 * @return The statistics of the scans.
 	 */
-	public List<java.awt.Rectangle> merge(List<java.awt.Rectangle> rects, int min_neighbors)
+	public ScanStatistics getStatistics()
+	{
+		return new ScanStatistics(config,cascade.nbStages,allCounters);
+	}
+
+	/**
+	 * @return The scan counters of the current thread, or null if instrumentation is off.
+	 */
+	private ScanCounters getCounters(DetectorConfig config)
 	{
-		List<java.awt.Rectangle> retour=new  LinkedList<java.awt.Rectangle>();
-		int[] ret=new int[rects.size()];
-		int nb_classes=0;
-		for(int i=0;i<rects.size();i++)
+		if(!config.isInstrumented())
+			return null;
+		ScanCounters c=counters.get();
+		if(c==null)
 		{
-			boolean found=false;
-			for(int j=0;j<i;j++)
+			c=new ScanCounters(cascade.nbStages);
+			counters.set(c);
+			allCounters.add(c);
+		}
+		return c;
+	}
+
+	/**
+	 * @return The window cache of the current thread, or null if the cache is off.
+	 */
+	private WindowCache getCache(DetectorConfig config)
+	{
+		/* The depths are stored in bytes. */
+		if(config.getWindowCacheSize()==0 || cascade.nbStages>Byte.MAX_VALUE)
+			return null;
+		WindowCache c=caches.get();
+		if(c==null || c.getCapacity()<config.getWindowCacheSize())
+		{
+			if(c!=null)
+				allCaches.remove(c);
+			c=new WindowCache(config.getWindowCacheSize());
+			caches.set(c);
+			allCaches.add(c);
+		}
+		return c;
+	}
+
+	/**
+	 * Computes the grayscale, integral (and if needed, Canny) images of an image into a context.
+	 * @return The plan of the scan of this image.
+	 */
+	private ScanPlan load(ScoringContext ctx, BufferedImage image, DetectorConfig config)
+	{
+		ScanCounters stats=getCounters(config);
+		long t0=stats!=null ? System.nanoTime() : 0;
+		/* Compute the grayscale image, the integral image and the squared integral image.*/
+		ctx.load(image);
+		long t1=stats!=null ? System.nanoTime() : 0;
+		/* Eventually compute the gradient of the image, if option is on. */
+		if(config.isCannyPruning())
+			ctx.computeCanny();
+		long t2=stats!=null ? System.nanoTime() : 0;
+		/* And the hashes of the pixels, if the window cache is on. */
+		if(config.getWindowCacheSize()>0)
+			ctx.computeHash();
+		if(stats!=null)
+		{
+			stats.images++;
+			stats.loadNanos+=t1-t0;
+			stats.cannyNanos+=t2-t1;
+			stats.hashNanos+=System.nanoTime()-t2;
+		}
+		return getPlan(ctx.width,ctx.height,config);
+	}
+
+	/**
+	 * Runs the cascade on all the windows of a plan, across the pool if there is one.
+	 * @param depths if not null, receives the depth reached by each window
+	 * @return The total depth reached in the cascade by the windows.
+	 */
+	private long scan(ScanPlan p, ScoringContext ctx, byte[] depths)
+	{
+		if(pool!=null && p.columnLevel.length>1)
+			return pool.invoke(new ScanTask(p,ctx,depths,0,p.columnLevel.length));
+		return scan(p,ctx,depths,0,p.columnLevel.length);
+	}
+
+	/**
+	 * Heart of the algorithm : detection.
+	 * Runs the cascade on the windows of columns from..to-1 of the plan, i.e. on all the windows of a given scale and
+	 * horizontal position.
+	 * @param depths if not null, receives the depth reached by each window
+	 * @return The total depth reached in the cascade by these windows.
+	 */
+	private long scan(ScanPlan p, ScoringContext ctx, byte[] depths, int from, int to)
+	{
+		int bottom=p.bottom;
+		/* Each thread has its own cache, even when the columns of one image are spread across the pool. */
+		WindowCache cache=getCache(p.config);
+		ScanCounters stats=getCounters(p.config);
+		/* The compiled and fixed-point cascades evaluate windows one by one. */
+		if(batch!=null && !p.config.isCompiledCascade() && !p.config.isFixedPoint())
+			return scanBatched(p,ctx,cache,stats,depths,from,to);
+		long total=0;
+		for(int c=from;c<to;c++)
+		{
+			int k=p.columnLevel[c];
+			ScaledCascade level=p.levels[k];
+			int i=p.columnX[c];
+			int step=level.step;
+			int size=level.size;
+			int w=p.columnStart[c];
+			/*For each position of the window in the column, check whether the object is detected there.*/
+			for(int j=p.top;j<bottom-size;j+=step,w++)
+			{
+				int d=window(p,k,ctx,cache,stats,i,j);
+				if(d>0)
+					total+=d;
+				if(depths!=null)
+					depths[w]=(byte)d;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Same as scan(p,ctx,depths,from,to), with the cascade run on up to batch.lanes() windows at once: the windows of a
+	 * row of neighbouring columns of the same scale, i.e. horizontally adjacent windows. They are pruned and looked up in
+	 * the cache one by one, then the remaining ones are evaluated together.
+	 */
+	private long scanBatched(ScanPlan p, ScoringContext ctx, WindowCache cache, ScanCounters stats, byte[] depths, int from,
+			int to)
+	{
+		int lanes=batch.lanes();
+		int[] bases=new int[lanes];
+		double[] vnorms=new double[lanes];
+		int[] found=new int[lanes];
+		/* Window number and cache key of each window of the batch. */
+		int[] windows=new int[lanes];
+		long[] keys=new long[lanes];
+		long total=0;
+		for(int c=from;c<to;)
+		{
+			int k=p.columnLevel[c];
+			ScaledCascade level=p.levels[k];
+			int n=1;
+			while(n<lanes && c+n<to && p.columnLevel[c+n]==k)
+				n++;
+			int rows=p.columnStart[c+1]-p.columnStart[c];
+			for(int row=0;row<rows;row++)
 			{
-				if(equals(rects.get(j),rects.get(i)))
+				int j=p.top+row*level.step;
+				int count=0;
+				for(int l=0;l<n;l++)
 				{
-					found=true;
-					ret[i]=ret[j];
+					int i=p.columnX[c+l];
+					int w=p.columnStart[c+l]+row;
+					int base=j*p.width+i;
+					int d;
+					if(pruned(p,level,ctx,base))
+					{
+						d=ScanResult.PRUNED;
+						if(stats!=null)
+							stats.pruned(k);
+					}
+					else if(cache!=null && (d=cache.get(keys[count]=WindowCache.key(ctx.windowHash(i,j,level.w,level.h),level)))!=WindowCache.MISS)
+					{
+						if(stats!=null)
+							stats.cached(k,d);
+					}
+					else
+					{
+						bases[count]=base;
+						vnorms[count]=level.vnorm(ctx.grayImage,ctx.squares,base);
+						windows[count]=w;
+						count++;
+						continue;
+					}
+					if(d>0)
+						total+=d;
+					if(depths!=null)
+						depths[w]=(byte)d;
+				}
+				if(count==1)
+					found[0]=level.depth(ctx.grayImage,bases[0],vnorms[0]);
+				else if(count>1)
+					batch.depths(level,ctx.grayImage,bases,vnorms,count,found);
+				for(int q=0;q<count;q++)
+				{
+					int d=found[q];
+					if(cache!=null)
+						cache.put(keys[q],d);
+					if(stats!=null)
+						stats.evaluated(k,d,cascade);
+					total+=d;
+					if(depths!=null)
+						depths[windows[q]]=(byte)d;
 				}
 			}
-			if(!found)
+			c+=n;
+		}
+		return total;
+	}
+
+	/**
+	 * Runs the cascade on one window, unless its depth is found in the cache.
+	 * @param k The level of the window in the plan.
+	 * @param cache The window cache, or null.
+	 * @param stats The scan counters, or null.
+	 * @param i The column of the top-left corner of the window.
+	 * @param j The row of the top-left corner of the window.
+	 * @return The depth reached in the cascade by the window, or ScanResult.PRUNED if it was skipped by Canny pruning.
+	 */
+	private static int window(ScanPlan p, int k, ScoringContext ctx, WindowCache cache, ScanCounters stats, int i, int j)
+	{
+		ScaledCascade level=p.levels[k];
+		int[] grayImage=ctx.grayImage;
+		int base=j*p.width+i;
+		if(pruned(p,level,ctx,base))
+		{
+			if(stats!=null)
+				stats.pruned(k);
+			return ScanResult.PRUNED;
+		}
+
+		/* A window holding the same pixels at the same scale has already been evaluated: it reaches the same depth. */
+		long key=0;
+		if(cache!=null)
+		{
+			key=WindowCache.key(ctx.windowHash(i,j,level.w,level.h),level);
+			int d=cache.get(key);
+			if(d!=WindowCache.MISS)
 			{
-				ret[i]=nb_classes;
-				nb_classes++;
+				if(stats!=null)
+					stats.cached(k,d);
+				return d;
 			}
 		}
-		int[] neighbors=new int[nb_classes];
-		Rectangle[] rect=new Rectangle[nb_classes];
-		for(int i=0;i<nb_classes;i++)
+
+		/* Perform each stage of the detector on the window. If one stage fails, the zone is rejected.
+		 * Return the maximum depth reached in the cascade.*/
+		int d=level.depth(grayImage,base,level.vnorm(grayImage,ctx.squares,base));
+		if(cache!=null)
+			cache.put(key,d);
+		if(stats!=null)
+			stats.evaluated(k,d,level.cascade);
+		return d;
+	}
+
+	/**
+	 * If Canny pruning is on, computes the edge density of a window.
+	 * If it is too low, the object should not be there so the window is skipped.
+	 * @param base The index of the top-left corner of the window in the integral images.
+	 * @return true if the window is skipped.
+	 */
+	private static boolean pruned(ScanPlan p, ScaledCascade level, ScoringContext ctx, int base)
+	{
+		if(!p.config.isCannyPruning())
+			return false;
+		int[] canny=ctx.canny;
+		int size=level.size;
+		int width=p.width;
+		int far = base+size*width+size;
+		int edges_density = canny[far]+canny[base]-canny[base+size*width]-canny[base+size];
+		int d = edges_density/size/size;
+		return d<p.config.getMinEdgeDensity()||d>p.config.getMaxEdgeDensity();
+	}
+
+	/**
+	 * Scans a range of columns of a plan, splitting it in halves across the pool until it is small enough.
+	 * Each task sums the depths of its own windows (and records them, if asked to), and the partial sums are added when the tasks are joined. The sum
+	 * being an integer, the result does not depend on how the work was split.
+	 */
+	@SuppressWarnings("serial")
+	private class ScanTask extends RecursiveTask<Long>
+	{
+		/** Number of columns below which a task scans its range itself. */
+		private static final int THRESHOLD = 4;
+
+		private final ScanPlan p;
+		private final ScoringContext ctx;
+		private final byte[] depths;
+		private final int from, to;
+
+		ScanTask(ScanPlan p, ScoringContext ctx, byte[] depths, int from, int to)
 		{
-			neighbors[i]=0;
-			rect[i]=new Rectangle(0,0,0,0);
+			this.p=p;
+			this.ctx=ctx;
+			this.depths=depths;
+			this.from=from;
+			this.to=to;
 		}
-		for(int i=0;i<rects.size();i++)
+
+		@Override
+		protected Long compute()
 		{
-			neighbors[ret[i]]++;
-			rect[ret[i]].x+=rects.get(i).x;
-			rect[ret[i]].y+=rects.get(i).y;
-			rect[ret[i]].height+=rects.get(i).height;
-			rect[ret[i]].width+=rects.get(i).width;
+			if(to-from<=THRESHOLD)
+				return scan(p,ctx,depths,from,to);
+			int mid=(from+to)>>>1;
+			ScanTask left=new ScanTask(p,ctx,depths,from,mid);
+			left.fork();
+			long right=new ScanTask(p,ctx,depths,mid,to).compute();
+			return left.join()+right;
 		}
-		for(int i = 0; i < nb_classes; i++ )
+	}
+
+	/**
+	 * Scans a range of images of a batch, splitting it in halves across the pool down to single images. Each image is
+	 * scanned by one thread, with that thread's buffers.
+	 */
+	@SuppressWarnings("serial")
+	private class BatchTask extends RecursiveAction
+	{
+		private final BufferedImage[] images;
+		private final ScanResult[] results;
+		private final int from, to;
+
+		BatchTask(BufferedImage[] images, ScanResult[] results, int from, int to)
 		{
-			int n = neighbors[i];
-			if( n >= min_neighbors)
+			this.images=images;
+			this.results=results;
+			this.from=from;
+			this.to=to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(to-from==1)
 			{
-				Rectangle r=new Rectangle(0,0,0,0);
-				r.x = (rect[i].x*2 + n)/(2*n);
-				r.y = (rect[i].y*2 + n)/(2*n);
-				r.width = (rect[i].width*2 + n)/(2*n);
-				r.height = (rect[i].height*2 + n)/(2*n);
-				retour.add(r);
+				results[from]=scan(images[from],false);
+				return;
 			}
+			int mid=(from+to)>>>1;
+			invokeAll(new BatchTask(images,results,from,mid),new BatchTask(images,results,mid,to));
 		}
-		return retour;
 	}
 
-	public int[] getNeighbours(List<java.awt.Rectangle> rects)
+	/**
+	 * Returns the per-scale cascade tables for a scan. The tables only depend on the image size and on the scan parameters,
+	 * so they are kept from one call to the next and only built again when one of these changes.
+	 */
+	private ScanPlan getPlan(int width, int height, DetectorConfig config)
 	{
-		int[] ret=new int[rects.size()];
-		int nb_classes=0;
-		for(int i=0;i<rects.size();i++)
+		PlanKey key=new PlanKey(width,height,config);
+		ScanPlan p=plans.get(key);
+		if(p==null)
 		{
-			boolean found=false;
-			for(int j=0;j<i;j++)
-			{
-				if(equals(rects.get(j),rects.get(i)))
-				{
-					found=true;
-					ret[i]=ret[j];
-				}
-			}
-			if(!found)
+			if(plans.size()>=MAX_PLANS)
+				plans.clear();
+			p=new ScanPlan(cascade,width,height,config);
+			ScanPlan previous=plans.putIfAbsent(key,p);
+			if(previous!=null)
+				p=previous;
+		}
+		return p;
+	}
+
+	/** Identifies the plan of a scan: the image size and the scan parameters. */
+	private static final class PlanKey
+	{
+		final int width, height;
+		final DetectorConfig config;
+
+		PlanKey(int width, int height, DetectorConfig config)
+		{
+			this.width=width;
+			this.height=height;
+			this.config=config;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if(!(o instanceof PlanKey))
+				return false;
+			PlanKey k=(PlanKey)o;
+			return width==k.width && height==k.height && config.equals(k.config);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (31*width+height)*31+config.hashCode();
+		}
+	}
+
+	/**
+	 * Scans the image with the detector's parameters and returns the detected objects: the windows which passed all the
+	 * stages of the cascade, merged (see merge()).
+	 * @param image the Image to scan
+	 * @param min_neighbors The minimum number of windows needed for a detection to be kept.
+	 * @return The merged rectangular detections, in pixels.
+	 */
+	public List<java.awt.Rectangle> detect(BufferedImage image, int min_neighbors)
+	{
+		ScanResult result=scan(image);
+		ScanPlan p=result.plan;
+		int[] rects=new int[16];
+		int n=0;
+		for(int c=0;c<p.columnLevel.length;c++)
+		{
+			int size=p.levels[p.columnLevel[c]].size;
+			int step=p.levels[p.columnLevel[c]].step;
+			for(int w=p.columnStart[c];w<p.columnStart[c+1];w++)
 			{
-				ret[i]=nb_classes;
-				nb_classes++;
+				if(result.depths[w]!=cascade.nbStages)
+					continue;
+				if(4*n==rects.length)
+					rects=Arrays.copyOf(rects,2*rects.length);
+				rects[4*n]=p.columnX[c];
+				rects[4*n+1]=p.top+(w-p.columnStart[c])*step;
+				rects[4*n+2]=size;
+				rects[4*n+3]=size;
+				n++;
 			}
 		}
-		int[] neighbors=new int[nb_classes];
-		Rectangle[] rect=new Rectangle[nb_classes];
-		for(int i=0;i<nb_classes;i++)
+		return merge(rects,n,min_neighbors);
+	}
+
+	/** Merge the raw detections resulting from the detection step to avoid multiple detections of the same object.
+	 * A threshold on the minimum numbers of rectangles that need to be merged for the resulting detection to be kept can be given,
+	 * to lower the rate of false detections.
+	 * Two rectangles need to be merged if they overlap enough.
+	 * @param rects The raw detections returned by the detection algorithm.
+	 * @param min_neighbors The minimum number of rectangles needed for the corresponding detection to be kept.
+	 * @return The merged rectangular detections.
+	 */
+	public List<java.awt.Rectangle> merge(List<java.awt.Rectangle> rects, int min_neighbors)
+	{
+		return merge(toArray(rects),rects.size(),min_neighbors);
+	}
+
+	private static List<java.awt.Rectangle> merge(int[] rects, int n, int min_neighbors)
+	{
+		RectangleClustering clustering=new RectangleClustering();
+		int nb_classes=clustering.cluster(rects,n);
+		int[] neighbors=clustering.getNeighbours();
+		List<java.awt.Rectangle> retour=new ArrayList<java.awt.Rectangle>();
+		int[] r=new int[4];
+		for(int i = 0; i < nb_classes; i++ )
 		{
-			neighbors[i]=0;
-			rect[i]=new Rectangle(0,0,0,0);
+			if(neighbors[i] >= min_neighbors)
+			{
+				clustering.getAverage(i,r,0);
+				retour.add(new Rectangle(r[0],r[1],r[2],r[3]));
+			}
 		}
-		for(int i=0;i<rects.size();i++)
+		return retour;
+	}
+
+	/**
+	 * Groups the raw detections like merge() does, and counts the detections of each group.
+	 * For an allocation-free form, see RectangleClustering.
+	 * @param rects The raw detections returned by the detection algorithm.
+	 * @return The number of rectangles of each group.
+	 */
+	public int[] getNeighbours(List<java.awt.Rectangle> rects)
+	{
+		RectangleClustering clustering=new RectangleClustering();
+		int nb_classes=clustering.cluster(toArray(rects),rects.size());
+		return Arrays.copyOf(clustering.getNeighbours(),nb_classes);
+	}
+
+	/** Packs rectangles into x, y, width, height ints. */
+	private static int[] toArray(List<java.awt.Rectangle> rects)
+	{
+		int[] a=new int[4*rects.size()];
+		int k=0;
+		for(Rectangle r : rects)
 		{
-			neighbors[ret[i]]++;
-			rect[ret[i]].x+=rects.get(i).x;
-			rect[ret[i]].y+=rects.get(i).y;
-			rect[ret[i]].height+=rects.get(i).height;
-			rect[ret[i]].width+=rects.get(i).width;
+			a[k++]=r.x;
+			a[k++]=r.y;
+			a[k++]=r.width;
+			a[k++]=r.height;
 		}
-		return neighbors;
+		return a;
 	}
 
 	/** Returns true if two rectangles overlap and should be merged.*/
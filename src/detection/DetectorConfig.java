@@ -0,0 +1,292 @@
+package detection;
+
+import java.awt.Rectangle;
+
+/**
+ * The parameters of a scan: which windows are visited, and which ones are pruned before the cascade is run.
+ * A configuration is immutable; the with...() methods return modified copies.
+ */
+public final class DetectorConfig {
+	/** The parameters used by the GA by default. */
+	public static final DetectorConfig DEFAULT = new DetectorConfig(3.5f, 1.1f, .05f, true, 20, 100);
+
+	private final float baseScale;
+	private final float scaleInc;
+	private final float increment;
+	private final boolean cannyPruning;
+	private final int minEdgeDensity;
+	private final int maxEdgeDensity;
+	private final int windowCacheSize;
+	private final boolean instrumented;
+	private final float maxScale;
+	/** The region the windows must lie in, null for the whole image. */
+	private final Rectangle region;
+	private final boolean compiledCascade;
+	private final boolean fixedPoint;
+
+	/**
+	 * @param baseScale The initial ratio between the window size and the Haar classifier size.
+	 * @param scaleInc The scale increment of the window size, at each step.
+	 * @param increment The shift of the window at each sub-step, in terms of percentage of the window size.
+	 * @param cannyPruning Whether windows with too few or too many edges are skipped.
+	 * @param minEdgeDensity Windows with a lower edge density are skipped, if Canny pruning is on.
+	 * @param maxEdgeDensity Windows with a higher edge density are skipped, if Canny pruning is on.
+	 */
+	public DetectorConfig(float baseScale, float scaleInc, float increment, boolean cannyPruning, int minEdgeDensity,
+			int maxEdgeDensity) {
+		this(baseScale, scaleInc, increment, cannyPruning, minEdgeDensity, maxEdgeDensity, 0);
+	}
+
+	/**
+	 * @param baseScale The initial ratio between the window size and the Haar classifier size.
+	 * @param scaleInc The scale increment of the window size, at each step.
+	 * @param increment The shift of the window at each sub-step, in terms of percentage of the window size.
+	 * @param cannyPruning Whether windows with too few or too many edges are skipped.
+	 * @param minEdgeDensity Windows with a lower edge density are skipped, if Canny pruning is on.
+	 * @param maxEdgeDensity Windows with a higher edge density are skipped, if Canny pruning is on.
+	 * @param windowCacheSize The number of window results kept by each scoring thread, 0 to disable the window cache.
+	 */
+	public DetectorConfig(float baseScale, float scaleInc, float increment, boolean cannyPruning, int minEdgeDensity,
+			int maxEdgeDensity, int windowCacheSize) {
+		this(baseScale, scaleInc, increment, cannyPruning, minEdgeDensity, maxEdgeDensity, windowCacheSize, false,
+				Float.POSITIVE_INFINITY, null, false, false);
+	}
+
+	private DetectorConfig(float baseScale, float scaleInc, float increment, boolean cannyPruning, int minEdgeDensity,
+			int maxEdgeDensity, int windowCacheSize, boolean instrumented, float maxScale, Rectangle region,
+			boolean compiledCascade, boolean fixedPoint) {
+		if (baseScale <= 0 || scaleInc <= 1 || increment <= 0)
+			throw new IllegalArgumentException("Invalid scan parameters: base scale " + baseScale + ", scale increment "
+					+ scaleInc + ", step " + increment);
+		if (windowCacheSize < 0)
+			throw new IllegalArgumentException("Invalid window cache size: " + windowCacheSize);
+		if (!(maxScale >= baseScale))
+			throw new IllegalArgumentException("Invalid scale range: " + baseScale + " to " + maxScale);
+		if (region != null && (region.width <= 0 || region.height <= 0))
+			throw new IllegalArgumentException("Empty region: " + region);
+		this.baseScale = baseScale;
+		this.scaleInc = scaleInc;
+		this.increment = increment;
+		this.cannyPruning = cannyPruning;
+		this.minEdgeDensity = minEdgeDensity;
+		this.maxEdgeDensity = maxEdgeDensity;
+		this.windowCacheSize = windowCacheSize;
+		this.instrumented = instrumented;
+		this.maxScale = maxScale;
+		this.region = region == null ? null : new Rectangle(region);
+		this.compiledCascade = compiledCascade;
+		this.fixedPoint = fixedPoint;
+	}
+
+	public DetectorConfig withBaseScale(float baseScale) {
+		return new DetectorConfig(baseScale, scaleInc, increment, cannyPruning, minEdgeDensity, maxEdgeDensity,
+				windowCacheSize, instrumented, maxScale, region, compiledCascade, fixedPoint);
+	}
+
+	public DetectorConfig withScaleInc(float scaleInc) {
+		return new DetectorConfig(baseScale, scaleInc, increment, cannyPruning, minEdgeDensity, maxEdgeDensity,
+				windowCacheSize, instrumented, maxScale, region, compiledCascade, fixedPoint);
+	}
+
+	public DetectorConfig withIncrement(float increment) {
+		return new DetectorConfig(baseScale, scaleInc, increment, cannyPruning, minEdgeDensity, maxEdgeDensity,
+				windowCacheSize, instrumented, maxScale, region, compiledCascade, fixedPoint);
+	}
+
+	public DetectorConfig withCannyPruning(boolean cannyPruning) {
+		return new DetectorConfig(baseScale, scaleInc, increment, cannyPruning, minEdgeDensity, maxEdgeDensity,
+				windowCacheSize, instrumented, maxScale, region, compiledCascade, fixedPoint);
+	}
+
+	public DetectorConfig withEdgeDensity(int minEdgeDensity, int maxEdgeDensity) {
+		return new DetectorConfig(baseScale, scaleInc, increment, cannyPruning, minEdgeDensity, maxEdgeDensity,
+				windowCacheSize, instrumented, maxScale, region, compiledCascade, fixedPoint);
+	}
+
+	/**
+	 * Returns a copy of this configuration with the window cache on or off. With the cache on, the depth reached by a
+	 * window is remembered by the content of the window, and windows holding the same pixels at the same scale (in this
+	 * image or a previous one) are not evaluated again. See Detector.getWindowCacheStats() to size it.
+	 * @param windowCacheSize The number of window results kept by each scoring thread, 0 to disable the cache.
+	 */
+	public DetectorConfig withWindowCache(int windowCacheSize) {
+		return new DetectorConfig(baseScale, scaleInc, increment, cannyPruning, minEdgeDensity, maxEdgeDensity,
+				windowCacheSize, instrumented, maxScale, region, compiledCascade, fixedPoint);
+	}
+
+	/**
+	 * Returns a copy of this configuration with the scan counters on or off. With the counters on, each scoring thread
+	 * counts the windows visited and pruned at each scale, the stage at which each window was rejected, the trees
+	 * evaluated, and the time spent in each phase of the scan. See Detector.getStatistics().
+	 * @param instrumented Whether the scans are counted.
+	 */
+	public DetectorConfig withInstrumentation(boolean instrumented) {
+		return new DetectorConfig(baseScale, scaleInc, increment, cannyPruning, minEdgeDensity, maxEdgeDensity,
+				windowCacheSize, instrumented, maxScale, region, compiledCascade, fixedPoint);
+	}
+
+	/**
+	 * Returns a copy of this configuration which only visits windows up to a given scale, e.g. to skip the windows
+	 * covering most of the image when the face should fill part of it. Scales start at the base scale.
+	 * @param maxScale The largest ratio between the window size and the Haar classifier size, at least the base scale.
+	 *        Float.POSITIVE_INFINITY for all the scales which fit in the image.
+	 */
+	public DetectorConfig withMaxScale(float maxScale) {
+		return new DetectorConfig(baseScale, scaleInc, increment, cannyPruning, minEdgeDensity, maxEdgeDensity,
+				windowCacheSize, instrumented, maxScale, region, compiledCascade, fixedPoint);
+	}
+
+	/**
+	 * Returns a copy of this configuration which only visits the windows lying inside a region of the image, e.g. around
+	 * its center when the face is expected there. The windows start at the top-left corner of the region, and are
+	 * spaced as in the whole image.
+	 * @param region The region, in pixels, or null to visit the whole image.
+	 */
+	public DetectorConfig withRegion(Rectangle region) {
+		return new DetectorConfig(baseScale, scaleInc, increment, cannyPruning, minEdgeDensity, maxEdgeDensity,
+				windowCacheSize, instrumented, maxScale, region, compiledCascade, fixedPoint);
+	}
+
+	/**
+	 * Returns a copy of this configuration which compiles the cascade to bytecode. For each scale of a scan, a class is
+	 * generated in which every feature is straight-line code, its rectangle offsets, weights and thresholds being
+	 * constants. The classes are generated when the scales of an image size are first prepared, which takes some time
+	 * and memory for each image size; they give the same depths as the tables. Only cascades of stumps are compiled, and
+	 * the compiled windows are evaluated one by one, not in vector batches. See CascadeBenchmark to compare.
+	 * @param compiledCascade Whether the cascade is compiled.
+	 */
+	public DetectorConfig withCompiledCascade(boolean compiledCascade) {
+		return new DetectorConfig(baseScale, scaleInc, increment, cannyPruning, minEdgeDensity, maxEdgeDensity,
+				windowCacheSize, instrumented, maxScale, region, compiledCascade, fixedPoint);
+	}
+
+	/**
+	 * Returns a copy of this configuration which evaluates the features in fixed point: on integers, the weights and
+	 * thresholds being scaled for each scale, without floating-point operation for each node. The depths may differ
+	 * from the floating-point ones for windows whose sums are within rounding of a threshold (see CascadeBenchmark).
+	 * Windows are then evaluated one by one, and the cascade is not compiled.
+	 * @param fixedPoint Whether the features are evaluated in fixed point.
+	 */
+	public DetectorConfig withFixedPoint(boolean fixedPoint) {
+		return new DetectorConfig(baseScale, scaleInc, increment, cannyPruning, minEdgeDensity, maxEdgeDensity,
+				windowCacheSize, instrumented, maxScale, region, compiledCascade, fixedPoint);
+	}
+
+	/**
+	 * @return The initial ratio between the window size and the Haar classifier size.
+	 */
+	public float getBaseScale() {
+		return baseScale;
+	}
+
+	/**
+	 * @return The scale increment of the window size, at each step.
+	 */
+	public float getScaleInc() {
+		return scaleInc;
+	}
+
+	/**
+	 * @return The shift of the window at each sub-step, in terms of percentage of the window size.
+	 */
+	public float getIncrement() {
+		return increment;
+	}
+
+	/**
+	 * @return Whether windows are pruned on their edge density.
+	 */
+	public boolean isCannyPruning() {
+		return cannyPruning;
+	}
+
+	public int getMinEdgeDensity() {
+		return minEdgeDensity;
+	}
+
+	public int getMaxEdgeDensity() {
+		return maxEdgeDensity;
+	}
+
+	/**
+	 * @return The number of window results kept by each scoring thread, 0 if the window cache is off.
+	 */
+	public int getWindowCacheSize() {
+		return windowCacheSize;
+	}
+
+	/**
+	 * @return Whether the scans are counted.
+	 */
+	public boolean isInstrumented() {
+		return instrumented;
+	}
+
+	/**
+	 * @return The largest ratio between the window size and the Haar classifier size, Float.POSITIVE_INFINITY if the
+	 *         scales are only limited by the size of the image.
+	 */
+	public float getMaxScale() {
+		return maxScale;
+	}
+
+	/**
+	 * @return The region the windows must lie in, or null for the whole image.
+	 */
+	public Rectangle getRegion() {
+		return region == null ? null : new Rectangle(region);
+	}
+
+	/**
+	 * @return Whether the cascade is compiled to bytecode.
+	 */
+	public boolean isCompiledCascade() {
+		return compiledCascade;
+	}
+
+	/**
+	 * @return Whether the features are evaluated in fixed point.
+	 */
+	public boolean isFixedPoint() {
+		return fixedPoint;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof DetectorConfig))
+			return false;
+		DetectorConfig c = (DetectorConfig) o;
+		return baseScale == c.baseScale && scaleInc == c.scaleInc && increment == c.increment
+				&& cannyPruning == c.cannyPruning && minEdgeDensity == c.minEdgeDensity
+				&& maxEdgeDensity == c.maxEdgeDensity && windowCacheSize == c.windowCacheSize
+				&& instrumented == c.instrumented && maxScale == c.maxScale
+				&& (region == null ? c.region == null : region.equals(c.region)) && compiledCascade == c.compiledCascade
+				&& fixedPoint == c.fixedPoint;
+	}
+
+	@Override
+	public int hashCode() {
+		int h = Float.floatToIntBits(baseScale);
+		h = 31 * h + Float.floatToIntBits(scaleInc);
+		h = 31 * h + Float.floatToIntBits(increment);
+		h = 31 * h + (cannyPruning ? 1 : 0);
+		h = 31 * h + minEdgeDensity;
+		h = 31 * h + maxEdgeDensity;
+		h = 31 * h + windowCacheSize;
+		h = 31 * h + (instrumented ? 1 : 0);
+		h = 31 * h + Float.floatToIntBits(maxScale);
+		h = 31 * h + (region == null ? 0 : region.hashCode());
+		h = 31 * h + (compiledCascade ? 1 : 0);
+		h = 31 * h + (fixedPoint ? 1 : 0);
+		return h;
+	}
+
+	@Override
+	public String toString() {
+		return "DetectorConfig[baseScale=" + baseScale + ", scaleInc=" + scaleInc + ", increment=" + increment
+				+ ", cannyPruning=" + cannyPruning + ", edgeDensity=" + minEdgeDensity + ".." + maxEdgeDensity
+				+ ", windowCacheSize=" + windowCacheSize + ", instrumented=" + instrumented + ", maxScale=" + maxScale
+				+ ", region=" + (region == null ? "all" : region.x + "," + region.y + " " + region.width + "x" + region.height)
+				+ ", compiledCascade=" + compiledCascade + ", fixedPoint=" + fixedPoint + "]";
+	}
+}
@@ -0,0 +1,114 @@
+package detection;
+
+/**
+ * The cascade of one scale in fixed point, see DetectorConfig.withFixedPoint: every node is evaluated on integers.
+ *
+ * A node goes left when rect_sum * inv_area < threshold * vnorm, that is when rect_sum < threshold * area * vnorm. The
+ * products threshold * area are computed for the scale with 16 fractional bits, the normalization of a window with 16
+ * fractional bits too, and the comparison is made on longs: rect_sum << 32 < (threshold * area) * vnorm. The weights
+ * of the rectangles are integers in the usual cascades, and are then used as they are: the sums of the rectangles are
+ * exactly those of the floating-point path as long as they are held exactly by a float (below 2^24). Other weights get
+ * 8 fractional bits. The leaf values and the stage thresholds have 24 fractional bits, and the stage sums are longs.
+ *
+ * The only floating-point operation left is the conversion of the normalization, once per window. The depths may
+ * differ from those of the floating-point path for windows whose sums are within rounding of a threshold; see
+ * CascadeBenchmark to count them.
+ *
+ * The magnitudes fit in longs for windows of up to 2^20 pixels: the sum of the rectangles of a node is below 2^30
+ * (times 2^8 for fractional weights), shifted by 32 bits; the threshold products are below 2^20 * 2^16 (thresholds are
+ * below 1), times a normalization below 2^8 * 2^16.
+ */
+final class FixedPointCascade {
+	private static final int THRESHOLD_BITS = 16;
+	private static final int NORM_BITS = 16;
+	private static final int VALUE_BITS = 24;
+	private static final int FRACTIONAL_WEIGHT_BITS = 8;
+
+	private final Cascade cascade;
+	private final int[] rectOffsets;
+	/** Weight of each rectangle, with weightBits fractional bits. */
+	private final int[] weights;
+	/** Shift of the rectangle sums before the comparison: THRESHOLD_BITS + NORM_BITS - weightBits. */
+	private final int shift;
+	/** Threshold of each node times the area of the window, with THRESHOLD_BITS fractional bits. */
+	private final long[] thresholds;
+	/** Leaf values of each node and threshold of each stage, with VALUE_BITS fractional bits. */
+	private final long[] leftVals;
+	private final long[] rightVals;
+	private final long[] stageThresholds;
+
+	FixedPointCascade(ScaledCascade level) {
+		Cascade c = level.cascade;
+		cascade = c;
+		rectOffsets = level.rectOffsets;
+
+		boolean integral = true;
+		for (float w : c.rectWeight)
+			integral &= w == (int) w;
+		int weightBits = integral ? 0 : FRACTIONAL_WEIGHT_BITS;
+		shift = THRESHOLD_BITS + NORM_BITS - weightBits;
+		weights = new int[c.rectWeight.length];
+		for (int r = 0; r < weights.length; r++)
+			weights[r] = (int) Math.round(c.rectWeight[r] * (double) (1 << weightBits));
+
+		double area = (double) level.w * level.h;
+		int nbNodes = c.nodeThreshold.length;
+		thresholds = new long[nbNodes];
+		leftVals = new long[nbNodes];
+		rightVals = new long[nbNodes];
+		for (int n = 0; n < nbNodes; n++) {
+			thresholds[n] = Math.round(c.nodeThreshold[n] * area * (1L << THRESHOLD_BITS));
+			leftVals[n] = Math.round(c.nodeLeftVal[n] * (double) (1L << VALUE_BITS));
+			rightVals[n] = Math.round(c.nodeRightVal[n] * (double) (1L << VALUE_BITS));
+		}
+		stageThresholds = new long[c.nbStages];
+		for (int s = 0; s < c.nbStages; s++)
+			stageThresholds[s] = Math.round(c.stageThreshold[s] * (double) (1L << VALUE_BITS));
+	}
+
+	/**
+	 * Runs the cascade on a window, as ScaledCascade.depth does, in fixed point.
+	 * @param grayImage The integral image, row-major.
+	 * @param base The index of the top-left corner of the window in the integral images.
+	 * @param vnorm The normalization of the window.
+	 * @return The number of stages passed by the window.
+	 */
+	int depth(int[] grayImage, int base, double vnorm) {
+		Cascade c = cascade;
+		long norm = Math.round(vnorm * (1 << NORM_BITS));
+		for (int s = 0; s < c.nbStages; s++) {
+			long sum = 0;
+			for (int t = c.stageTreeStart[s]; t < c.stageTreeStart[s + 1]; t++) {
+				int n = c.treeNodeStart[t];
+				while (true) {
+					if (goesLeft(n, grayImage, base, norm)) {
+						if (c.nodeLeft[n] < 0) {
+							sum += leftVals[n];
+							break;
+						}
+						n = c.nodeLeft[n];
+					} else {
+						if (c.nodeRight[n] < 0) {
+							sum += rightVals[n];
+							break;
+						}
+						n = c.nodeRight[n];
+					}
+				}
+			}
+			if (!(sum > stageThresholds[s]))
+				return s;
+		}
+		return c.nbStages;
+	}
+
+	private boolean goesLeft(int n, int[] grayImage, int base, long norm) {
+		long rect_sum = 0;
+		int[] off = rectOffsets;
+		for (int r = cascade.nodeRectStart[n]; r < cascade.nodeRectStart[n + 1]; r++) {
+			int o = 4 * r;
+			rect_sum += (long) (grayImage[base + off[o + 3]] - grayImage[base + off[o + 2]] - grayImage[base + off[o + 1]] + grayImage[base + off[o]]) * weights[r];
+		}
+		return rect_sum << shift < thresholds[n] * norm;
+	}
+}
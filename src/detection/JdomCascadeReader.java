@@ -0,0 +1,100 @@
+package detection;
+
+import java.awt.Point;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Scanner;
+
+import org.jdom2.Element;
+
+/**
+ * Reads a Haar cascade from a JDOM document of the OpenCV XML file. Kept apart from Detector so that JDOM is only needed
+ * by callers which already have a document; the XML files themselves are read with CascadeParser.
+ *
+ * @author tc/jviolajones
+ */
+class JdomCascadeReader {
+
+	/**
+	 * Builds, from a XML document (i.e. the result of parsing an XML file, the corresponding Haar cascade.
+	 * @param document The XML document (parsing of file generated by OpenCV) describing the Haar cascade.
+	 */
+	@SuppressWarnings({ "resource", "rawtypes" })
+	static Cascade read(org.jdom2.Document document)
+	{
+		/* The detector is constituted by stages, each of them telling whether the considered zone represents the object
+		 * with probability a bit greater than 0.5. If a zone passes all stages, it is considered as representing the object.*/
+		List<Stage> stages=new LinkedList<Stage>();
+
+		/* Read the size (in pixels) of the detector. */
+		Element racine = (Element) document.getRootElement().getChildren().get(0);
+		Scanner scanner = new Scanner(racine.getChild("size").getText());
+		Point size = new Point(scanner.nextInt(),scanner.nextInt());
+
+		/* Iterate over the stages nodes to read the stages. */
+		Iterator it=racine.getChild("stages").getChildren("_").iterator();
+		while(it.hasNext())
+		{
+			Element stage=(Element)it.next();
+			/* Read the stage threshold. */
+			float thres=Float.parseFloat(stage.getChild("stage_threshold").getText());
+
+			/*Read all trees of the stage. */
+			Iterator it2=stage.getChild("trees").getChildren("_").iterator();
+			Stage st=new Stage(thres);
+			while(it2.hasNext())
+			{
+				Element tree = ((Element)it2.next());
+				Tree t = new Tree();
+				Iterator it4 = tree.getChildren("_").iterator();
+				while(it4.hasNext())
+				{
+					Element feature=(Element) it4.next();
+					float thres2=Float.parseFloat(feature.getChild("threshold").getText());
+					int left_node=-1;
+					float left_val = 0;
+					boolean has_left_val =false;
+					int right_node=-1;
+					float right_val = 0;
+					boolean has_right_val =false;
+					Element e;
+					if((e=feature.getChild("left_val"))!=null)
+					{
+						left_val = Float.parseFloat(e.getText());
+						has_left_val=true;
+					}
+					else
+					{
+						left_node = Integer.parseInt(feature.getChild("left_node").getText());
+						has_left_val=false;
+					}
+
+					if((e=feature.getChild("right_val"))!=null)
+					{
+						right_val = Float.parseFloat(e.getText());
+						has_right_val=true;
+					}
+					else
+					{
+						right_node = Integer.parseInt(feature.getChild("right_node").getText());
+						has_right_val=false;
+					}
+					Feature f = new Feature(thres2,left_val,left_node,has_left_val,right_val,right_node,has_right_val,size);
+					Iterator it3=feature.getChild("feature").getChild("rects").getChildren("_").iterator();
+					while(it3.hasNext())
+					{
+						String s = ((Element) it3.next()).getText().trim();
+						Rect r = Rect.fromString(s);
+						f.add(r);
+					}
+
+					t.addFeature(f);
+				}
+				st.addTree(t);
+			}
+			stages.add(st);
+		}
+		return new Cascade(stages,size);
+	}
+}
@@ -0,0 +1,194 @@
+package detection;
+
+import java.util.Arrays;
+
+/**
+ * Groups raw detections into classes of overlapping rectangles, as Detector.merge does, without comparing every pair of
+ * rectangles.
+ *
+ * The classes are the ones of the original algorithm: rectangles are taken in order, and a rectangle joins the class of
+ * the last rectangle before it which it should be merged with (see Detector.equals), or starts a new class. The last
+ * such rectangle can only be close to it: either at most 20% of its own width away, its width being at most 1.2 times
+ * the new one's, or inside the new one. So the top-left corners of the rectangles already taken are kept in a grid, and
+ * only the cells around the new rectangle are searched.
+ *
+ * Rectangles are given as a flat array, 4 ints per rectangle: x, y, width, height. The buffers are kept from one call to
+ * the next, so clustering the detections of successive images does not allocate once they are large enough. A
+ * clustering object is not thread-safe.
+ */
+public class RectangleClustering {
+	/* Per rectangle: its class, and the next rectangle in the same grid cell (-1 at the end). */
+	private int[] classes = new int[0];
+	private int[] next = new int[0];
+	/* First rectangle of each grid cell, the last one inserted. */
+	private int[] head = new int[0];
+
+	/* Per class: the number of rectangles and the sums of their coordinates. */
+	private int nbClasses;
+	private int[] neighbours = new int[0];
+	private int[] sumX = new int[0];
+	private int[] sumY = new int[0];
+	private int[] sumW = new int[0];
+	private int[] sumH = new int[0];
+
+	/** Above this number of rectangles, the grid is used. */
+	private static final int BRUTE_FORCE = 16;
+
+	/**
+	 * Groups rectangles into classes.
+	 * @param rects The rectangles, 4 ints each: x, y, width, height.
+	 * @param n The number of rectangles.
+	 * @return The number of classes.
+	 */
+	public int cluster(int[] rects, int n) {
+		if (classes.length < n) {
+			classes = new int[n];
+			next = new int[n];
+		}
+		nbClasses = 0;
+		boolean positive = true;
+		for (int i = 0; i < n; i++)
+			positive &= rects[4 * i + 2] >= 0 && rects[4 * i + 3] >= 0;
+		/* The bounds of the search only hold for rectangles of positive size. */
+		if (n <= BRUTE_FORCE || !positive)
+			clusterPairs(rects, n);
+		else
+			clusterGrid(rects, n);
+		sum(rects, n);
+		return nbClasses;
+	}
+
+	/** The original algorithm: each rectangle is compared with all the ones before it. */
+	private void clusterPairs(int[] rects, int n) {
+		for (int i = 0; i < n; i++) {
+			int c = -1;
+			for (int j = 0; j < i; j++)
+				if (mergeable(rects, j, i))
+					c = classes[j];
+			classes[i] = c >= 0 ? c : nbClasses++;
+		}
+	}
+
+	private void clusterGrid(int[] rects, int n) {
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		int maxSize = 1;
+		for (int i = 0; i < n; i++) {
+			int x = rects[4 * i], y = rects[4 * i + 1];
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+			maxSize = Math.max(maxSize, Math.max(rects[4 * i + 2], rects[4 * i + 3]));
+		}
+		/* Cells about as large as the largest rectangle, but not many more cells than rectangles. */
+		long spanX = (long) maxX - minX, spanY = (long) maxY - minY;
+		long cell = maxSize;
+		while ((spanX / cell + 1) * (spanY / cell + 1) > 4L * n)
+			cell *= 2;
+		int gx = (int) (spanX / cell + 1), gy = (int) (spanY / cell + 1);
+		if (head.length < gx * gy)
+			head = new int[gx * gy];
+		Arrays.fill(head, 0, gx * gy, -1);
+
+		for (int i = 0; i < n; i++) {
+			int x = rects[4 * i], y = rects[4 * i + 1], w = rects[4 * i + 2], h = rects[4 * i + 3];
+			/* A rectangle j it can be merged with has w_j <= (int)(w*1.2), so it is at most (int)((int)(w*1.2)*0.2) away;
+			 * or it is inside it, its corner between (x,y) and (x+w,y+h). */
+			int d = (int) ((int) (w * 1.2) * 0.2);
+			int cx0 = cell(x - (long) d, minX, cell, gx), cx1 = cell(x + (long) Math.max(d, w), minX, cell, gx);
+			int cy0 = cell(y - (long) d, minY, cell, gy), cy1 = cell(y + (long) Math.max(d, h), minY, cell, gy);
+			int last = -1;
+			for (int cy = cy0; cy <= cy1; cy++) {
+				for (int cx = cx0; cx <= cx1; cx++) {
+					/* Cells list their rectangles from the last one inserted: the first match is the last one of the cell. */
+					for (int j = head[cy * gx + cx]; j > last; j = next[j]) {
+						if (mergeable(rects, j, i)) {
+							last = j;
+							break;
+						}
+					}
+				}
+			}
+			classes[i] = last >= 0 ? classes[last] : nbClasses++;
+			int c = cell(y, minY, cell, gy) * gx + cell(x, minX, cell, gx);
+			next[i] = head[c];
+			head[c] = i;
+		}
+	}
+
+	private static int cell(long v, int min, long cell, int count) {
+		return (int) Math.min(count - 1, Math.max(0, v - min) / cell);
+	}
+
+	/** Same test as Detector.equals(rectangle j, rectangle i). */
+	private static boolean mergeable(int[] rects, int j, int i) {
+		int x1 = rects[4 * j], y1 = rects[4 * j + 1], w1 = rects[4 * j + 2], h1 = rects[4 * j + 3];
+		int x2 = rects[4 * i], y2 = rects[4 * i + 1], w2 = rects[4 * i + 2], h2 = rects[4 * i + 3];
+		int distance = (int) (w1 * 0.2);
+		if (x2 <= x1 + distance && x2 >= x1 - distance && y2 <= y1 + distance && y2 >= y1 - distance
+				&& w2 <= (int) (w1 * 1.2) && (int) (w2 * 1.2) >= w1)
+			return true;
+		return x1 >= x2 && x1 + w1 <= x2 + w2 && y1 >= y2 && y1 + h1 <= y2 + h2;
+	}
+
+	private void sum(int[] rects, int n) {
+		if (neighbours.length < nbClasses) {
+			int m = Math.max(nbClasses, 2 * neighbours.length);
+			neighbours = new int[m];
+			sumX = new int[m];
+			sumY = new int[m];
+			sumW = new int[m];
+			sumH = new int[m];
+		}
+		for (int c = 0; c < nbClasses; c++) {
+			neighbours[c] = 0;
+			sumX[c] = 0;
+			sumY[c] = 0;
+			sumW[c] = 0;
+			sumH[c] = 0;
+		}
+		for (int i = 0; i < n; i++) {
+			int c = classes[i];
+			neighbours[c]++;
+			sumX[c] += rects[4 * i];
+			sumY[c] += rects[4 * i + 1];
+			sumW[c] += rects[4 * i + 2];
+			sumH[c] += rects[4 * i + 3];
+		}
+	}
+
+	/**
+	 * @return The number of classes found by the last call to cluster().
+	 */
+	public int getClassCount() {
+		return nbClasses;
+	}
+
+	/**
+	 * @return The class of each rectangle of the last call to cluster(). Only the first n entries are meaningful.
+	 */
+	public int[] getClasses() {
+		return classes;
+	}
+
+	/**
+	 * @return The number of rectangles in each class. Only the first getClassCount() entries are meaningful.
+	 */
+	public int[] getNeighbours() {
+		return neighbours;
+	}
+
+	/**
+	 * Computes the average rectangle of a class, rounded as Detector.merge does.
+	 * @param c The class.
+	 * @param out Receives x, y, width and height.
+	 * @param offset Where to write them in out.
+	 */
+	public void getAverage(int c, int[] out, int offset) {
+		int n = neighbours[c];
+		out[offset] = (sumX[c] * 2 + n) / (2 * n);
+		out[offset + 1] = (sumY[c] * 2 + n) / (2 * n);
+		out[offset + 2] = (sumW[c] * 2 + n) / (2 * n);
+		out[offset + 3] = (sumH[c] * 2 + n) / (2 * n);
+	}
+}
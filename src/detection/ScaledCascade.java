@@ -0,0 +1,216 @@
+package detection;
+
+/**
+ * The cascade, prepared for one scale of the sliding window on images of a given width.
+ *
+ * Every rectangle coordinate of every feature only depends on the scale, so the integral-image offsets of the four
+ * corners of each rectangle are computed once here. Evaluating a window then only needs the index of its top-left corner
+ * in the (flat, row-major) integral images.
+ */
+public class ScaledCascade {
+	final Cascade cascade;
+	final float scale;
+	/** Width of the integral images (distance between two rows). */
+	final int stride;
+
+	/** Size of the scaled detector window, and the sliding step of the window at this scale. */
+	final int size;
+	final int step;
+
+	/* Window area, as used by the features. */
+	final int w;
+	final int h;
+	final double inv_area;
+
+	/** Offsets of the corners of each rectangle, 4 per rectangle: top-left, top-right, bottom-left, bottom-right. */
+	final int[] rectOffsets;
+
+	/**
+	 * For cascades of stumps with at most 3 rectangles per feature (see stumpDepth): the corner offsets and weights of
+	 * exactly 3 rectangles per node, the missing ones having a weight of 0. Null for other cascades.
+	 */
+	private final int[] stumpOffsets;
+	private final float[] stumpWeights;
+
+	/** The cascade compiled for this scale, or null to evaluate windows from the tables. */
+	private final CompiledCascade compiled;
+	/** The cascade of this scale in fixed point, or null to evaluate windows in floating point. */
+	private final FixedPointCascade fixed;
+
+	/**
+	 * @param cascade The compiled cascade.
+	 * @param scale The ratio between the window size and the detector size.
+	 * @param stride The width of the integral images the cascade will be run on.
+	 * @param increment The shift of the window at each sub-step, in terms of percentage of the window size.
+	 */
+	public ScaledCascade(Cascade cascade, float scale, int stride, float increment) {
+		this(cascade, scale, stride, increment, false, false);
+	}
+
+	/**
+	 * @param compile Whether to compile the cascade for this scale (see DetectorConfig.withCompiledCascade).
+	 * @param fixedPoint Whether to evaluate the features in fixed point (see DetectorConfig.withFixedPoint), which
+	 *        takes precedence over compiling.
+	 */
+	ScaledCascade(Cascade cascade, float scale, int stride, float increment, boolean compile, boolean fixedPoint) {
+		this.cascade = cascade;
+		this.scale = scale;
+		this.stride = stride;
+		step = (int) (scale * cascade.size.x * increment);
+		size = (int) (scale * cascade.size.x);
+
+		w = (int) (scale * cascade.size.x);
+		h = (int) (scale * cascade.size.y);
+		inv_area = 1. / (w * h);
+
+		int nbRects = cascade.rectX.length;
+		rectOffsets = new int[4 * nbRects];
+		for (int r = 0; r < nbRects; r++) {
+			/* Scale the rectangle according to the window size. */
+			int rx1 = (int) (scale * cascade.rectX[r]);
+			int rx2 = (int) (scale * (cascade.rectX[r] + cascade.rectW[r]));
+			int ry1 = (int) (scale * cascade.rectY[r]);
+			int ry2 = (int) (scale * (cascade.rectY[r] + cascade.rectH[r]));
+			rectOffsets[4 * r] = ry1 * stride + rx1;
+			rectOffsets[4 * r + 1] = ry1 * stride + rx2;
+			rectOffsets[4 * r + 2] = ry2 * stride + rx1;
+			rectOffsets[4 * r + 3] = ry2 * stride + rx2;
+		}
+
+		int nbNodes = cascade.nodeThreshold.length;
+		boolean padded = cascade.stumps;
+		for (int n = 0; n < nbNodes && padded; n++)
+			padded = cascade.nodeRectStart[n + 1] - cascade.nodeRectStart[n] <= 3;
+		if (padded) {
+			stumpOffsets = new int[12 * nbNodes];
+			stumpWeights = new float[3 * nbNodes];
+			for (int n = 0; n < nbNodes; n++) {
+				int k = 3 * n;
+				for (int r = cascade.nodeRectStart[n]; r < cascade.nodeRectStart[n + 1]; r++, k++) {
+					System.arraycopy(rectOffsets, 4 * r, stumpOffsets, 4 * k, 4);
+					stumpWeights[k] = cascade.rectWeight[r];
+				}
+			}
+		} else {
+			stumpOffsets = null;
+			stumpWeights = null;
+		}
+
+		fixed = fixedPoint ? new FixedPointCascade(this) : null;
+		compiled = compile && !fixedPoint && cascade.stumps ? CompiledCascade.compile(this) : null;
+	}
+
+	/**
+	 * Computes the normalization of a window: the standard deviation of its pixel values (or 1 if the variance is lower
+	 * than 1). It is the same for every feature evaluated on the window, so it is computed once per window.
+	 * @param grayImage The integral image, row-major.
+	 * @param squares The squared integral image, row-major.
+	 * @param base The index of the top-left corner of the window in the integral images.
+	 */
+	public double vnorm(int[] grayImage, int[] squares, int base) {
+		int wo = w;
+		int ho = h * stride;
+
+		/* Mean and variance of the pixel values in the window. */
+		int total_x = grayImage[base + ho + wo] + grayImage[base] - grayImage[base + ho] - grayImage[base + wo];
+		int total_x2 = squares[base + ho + wo] + squares[base] - squares[base + ho] - squares[base + wo];
+		double moy = total_x * inv_area;
+		double vnorm = total_x2 * inv_area - moy * moy;
+		return (vnorm > 1) ? Math.sqrt(vnorm) : 1;
+	}
+
+	/**
+	 * @return Whether the windows of this scale are evaluated in fixed point.
+	 */
+	boolean isFixedPoint() {
+		return fixed != null;
+	}
+
+	/**
+	 * Runs the cascade on a window.
+	 * @param grayImage The integral image, row-major.
+	 * @param base The index of the top-left corner of the window in the integral images.
+	 * @param vnorm The normalization of the window, see vnorm().
+	 * @return The number of stages passed by the window, from 0 to the number of stages (the window passed all stages).
+	 */
+	public int depth(int[] grayImage, int base, double vnorm) {
+		if (fixed != null)
+			return fixed.depth(grayImage, base, vnorm);
+		if (compiled != null)
+			return compiled.depth(grayImage, base, vnorm);
+		Cascade c = cascade;
+		if (stumpOffsets != null)
+			return stumpDepth(grayImage, base, vnorm);
+		for (int s = 0; s < c.nbStages; s++) {
+			float sum = 0;
+			/* Compute the sum of values returned by each tree of the stage. */
+			for (int t = c.stageTreeStart[s]; t < c.stageTreeStart[s + 1]; t++) {
+				sum += treeVal(t, grayImage, base, vnorm);
+			}
+			/* The stage succeeds if the sum exceeds the stage threshold, and fails otherwise.*/
+			if (!(sum > c.stageThreshold[s]))
+				return s;
+		}
+		return c.nbStages;
+	}
+
+	/**
+	 * Same as depth, for cascades of stumps. Tree t is node t, and its value is one of the two leaf values of the node:
+	 * the nodes of a stage are evaluated in a straight loop, without walking trees, and the leaf value is selected
+	 * without a branch. Every node has 3 rectangles, so the loop body has no inner loop. A missing rectangle adds
+	 * (int)(0 * 0f) = 0 to the sum; otherwise the operations are those of goesLeft, so the depth is the same.
+	 */
+	private int stumpDepth(int[] grayImage, int base, double vnorm) {
+		Cascade c = cascade;
+		int[] off = stumpOffsets;
+		float[] weight = stumpWeights;
+		float[] threshold = c.nodeThreshold;
+		float[] leftVal = c.nodeLeftVal;
+		float[] rightVal = c.nodeRightVal;
+		for (int s = 0; s < c.nbStages; s++) {
+			float sum = 0;
+			for (int n = c.stageTreeStart[s]; n < c.stageTreeStart[s + 1]; n++) {
+				int o = 12 * n, k = 3 * n;
+				int rect_sum = (int) ((grayImage[base + off[o + 3]] - grayImage[base + off[o + 2]] - grayImage[base + off[o + 1]] + grayImage[base + off[o]]) * weight[k]);
+				rect_sum += (int) ((grayImage[base + off[o + 7]] - grayImage[base + off[o + 6]] - grayImage[base + off[o + 5]] + grayImage[base + off[o + 4]]) * weight[k + 1]);
+				rect_sum += (int) ((grayImage[base + off[o + 11]] - grayImage[base + off[o + 10]] - grayImage[base + off[o + 9]] + grayImage[base + off[o + 8]]) * weight[k + 2]);
+				double rect_sum2 = rect_sum * inv_area;
+				sum += rect_sum2 < threshold[n] * vnorm ? leftVal[n] : rightVal[n];
+			}
+			if (!(sum > c.stageThreshold[s]))
+				return s;
+		}
+		return c.nbStages;
+	}
+
+	/** Walks tree t down to a leaf and returns the leaf's value. */
+	private float treeVal(int t, int[] grayImage, int base, double vnorm) {
+		Cascade c = cascade;
+		int n = c.treeNodeStart[t];
+		while (true) {
+			if (goesLeft(n, grayImage, base, vnorm)) {
+				if (c.nodeLeft[n] < 0)
+					return c.nodeLeftVal[n];
+				n = c.nodeLeft[n];
+			} else {
+				if (c.nodeRight[n] < 0)
+					return c.nodeRightVal[n];
+				n = c.nodeRight[n];
+			}
+		}
+	}
+
+	/** Same computation as Feature.getLeftOrRight, with the rectangle corners read from the offset table. */
+	private boolean goesLeft(int n, int[] grayImage, int base, double vnorm) {
+		int rect_sum = 0;
+		int[] off = rectOffsets;
+		float[] weight = cascade.rectWeight;
+		for (int r = cascade.nodeRectStart[n]; r < cascade.nodeRectStart[n + 1]; r++) {
+			int o = 4 * r;
+			rect_sum += (int) ((grayImage[base + off[o + 3]] - grayImage[base + off[o + 2]] - grayImage[base + off[o + 1]] + grayImage[base + off[o]]) * weight[r]);
+		}
+		double rect_sum2 = rect_sum * inv_area;
+
+		return rect_sum2 < cascade.nodeThreshold[n] * vnorm;
+	}
+}
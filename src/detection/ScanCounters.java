@@ -0,0 +1,63 @@
+package detection;
+
+/**
+ * The counters of the scans run by one thread, when the detector's configuration is instrumented. Only the thread owning
+ * the counters updates them; they are read, without synchronization, to build ScanStatistics.
+ */
+class ScanCounters {
+	/** Number of images loaded. */
+	long images;
+	/** Windows visited and windows pruned by Canny, by scale (index of the level in the scan plan). */
+	long[] windows = new long[0];
+	long[] pruned = new long[0];
+	/** Windows which reached each depth: rejected by stage s, or nbStages for the windows which passed all stages. */
+	final long[] depths;
+	/** Windows whose depth was found in the window cache. */
+	long cached;
+	/** Trees evaluated. For cascades of stumps, the number of features evaluated. */
+	long trees;
+
+	/* Time spent in each phase, in nanoseconds. */
+	long loadNanos;
+	long cannyNanos;
+	long hashNanos;
+	long scanNanos;
+
+	ScanCounters(int nbStages) {
+		depths = new long[nbStages + 1];
+	}
+
+	/** Counts a window pruned by Canny at a given level. */
+	void pruned(int level) {
+		grow(level);
+		windows[level]++;
+		pruned[level]++;
+	}
+
+	/** Counts a window whose depth was found in the window cache. */
+	void cached(int level, int depth) {
+		grow(level);
+		windows[level]++;
+		depths[depth]++;
+		cached++;
+	}
+
+	/** Counts a window on which the cascade was run: all the trees of the stages up to the one which rejected it. */
+	void evaluated(int level, int depth, Cascade cascade) {
+		grow(level);
+		windows[level]++;
+		depths[depth]++;
+		trees += cascade.stageTreeStart[Math.min(depth + 1, cascade.nbStages)];
+	}
+
+	private void grow(int level) {
+		if (level >= windows.length) {
+			long[] w = new long[level + 1];
+			long[] p = new long[level + 1];
+			System.arraycopy(windows, 0, w, 0, windows.length);
+			System.arraycopy(pruned, 0, p, 0, pruned.length);
+			windows = w;
+			pruned = p;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package detection;
+
+/**
+ * The outcome of a scan against a threshold: either the exact scan result, or the bounds of the score of a rejected
+ * image, which lie below the threshold the image had to reach. The bounds are those of a confidence interval estimated
+ * from a sample of the windows (see Detector.scanAbove), or the exact bounds left by the windows evaluated before the
+ * scan stopped (see Detector.scanToBeat).
+ */
+public class ScanEstimate {
+	private final ScanResult result;
+	private final double score;
+	private final double lowerBound;
+	private final double upperBound;
+	private final int evaluated;
+	private final int windows;
+
+	/** An exact result. */
+	ScanEstimate(ScanResult result) {
+		this.result = result;
+		this.score = result.getScore();
+		this.lowerBound = score;
+		this.upperBound = score;
+		this.evaluated = result.getEvaluatedCount();
+		this.windows = result.getWindowCount();
+	}
+
+	/** A rejection. */
+	ScanEstimate(double score, double lowerBound, double upperBound, int evaluated, int windows) {
+		this.result = null;
+		this.score = score;
+		this.lowerBound = lowerBound;
+		this.upperBound = upperBound;
+		this.evaluated = evaluated;
+		this.windows = windows;
+	}
+
+	/**
+	 * @return true if the image was rejected before all its windows were evaluated: its score is only bounded.
+	 */
+	public boolean isRejected() {
+		return result == null;
+	}
+
+	/**
+	 * @return The exact scan result, or null if the image was rejected.
+	 */
+	public ScanResult getResult() {
+		return result;
+	}
+
+	/**
+	 * @return The score, or if the image was rejected, its estimate from a sample, or its upper bound when the scan
+	 *         stopped on the bounds.
+	 */
+	public double getScore() {
+		return score;
+	}
+
+	/**
+	 * @return The lower bound of the score, the score itself if it is exact.
+	 */
+	public double getLowerBound() {
+		return lowerBound;
+	}
+
+	/**
+	 * @return The upper bound of the score, the score itself if it is exact.
+	 */
+	public double getUpperBound() {
+		return upperBound;
+	}
+
+	/**
+	 * @return The number of windows on which the cascade was run.
+	 */
+	public int getEvaluatedCount() {
+		return evaluated;
+	}
+
+	/**
+	 * @return The number of windows of the scan.
+	 */
+	public int getWindowCount() {
+		return windows;
+	}
+}
@@ -0,0 +1,79 @@
+package detection;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The windows visited by a scan of an image of a given size with given parameters: the scales, with their precomputed
+ * cascade tables, and the positions of the windows. Never modified once built.
+ *
+ * The windows are grouped in columns (a scale and a horizontal position), and numbered in scan order: column by column,
+ * then from top to bottom.
+ */
+class ScanPlan {
+	final DetectorConfig config;
+	final int width, height;
+	/** The rows the windows lie in: a window at row j spans j to j+size, with top <= j and j+size < bottom. */
+	final int top, bottom;
+	final ScaledCascade[] levels;
+	/** The columns of windows: each one is a scale (index in levels) and a horizontal position. */
+	final int[] columnLevel;
+	final int[] columnX;
+	/** Number of the first window of each column; the last entry is the total number of windows. */
+	final int[] columnStart;
+
+	ScanPlan(Cascade cascade, int width, int height, DetectorConfig config) {
+		this.config = config;
+		this.width = width;
+		this.height = height;
+
+		/* The windows lie in the region, if any, as they lie in the image otherwise. */
+		Rectangle region = new Rectangle(0, 0, width, height);
+		if (config.getRegion() != null)
+			region = region.intersection(config.getRegion());
+		int left = region.x, right = region.x + region.width;
+		top = region.y;
+		bottom = region.y + region.height;
+
+		/* Compute the max scale of the detector, i.e. the size of the image divided by the size of the detector. */
+		float maxScale = (Math.min((width + 0.f) / cascade.size.x, (height + 0.0f) / cascade.size.y));
+		/* And stop at the largest scale asked for. */
+		if (config.getMaxScale() < maxScale)
+			maxScale = Math.nextUp(config.getMaxScale());
+		List<ScaledCascade> l = new ArrayList<ScaledCascade>();
+		for (float scale = config.getBaseScale(); scale < maxScale; scale *= config.getScaleInc())
+			l.add(new ScaledCascade(cascade, scale, width, config.getIncrement(), config.isCompiledCascade(),
+					config.isFixedPoint()));
+		levels = l.toArray(new ScaledCascade[l.size()]);
+
+		int nb = 0;
+		for (ScaledCascade level : levels)
+			for (int i = left; i < right - level.size; i += level.step)
+				nb++;
+		columnLevel = new int[nb];
+		columnX = new int[nb];
+		columnStart = new int[nb + 1];
+		int c = 0;
+		int windows = 0;
+		for (int k = 0; k < levels.length; k++) {
+			ScaledCascade level = levels[k];
+			int rows = bottom - top > level.size ? (bottom - top - level.size + level.step - 1) / level.step : 0;
+			for (int i = left; i < right - level.size; i += level.step) {
+				columnLevel[c] = k;
+				columnX[c] = i;
+				columnStart[c] = windows;
+				windows += rows;
+				c++;
+			}
+		}
+		columnStart[nb] = windows;
+	}
+
+	/**
+	 * @return The number of windows visited by the scan.
+	 */
+	int getWindowCount() {
+		return columnStart[columnStart.length - 1];
+	}
+}
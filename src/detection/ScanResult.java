@@ -0,0 +1,63 @@
+package detection;
+
+/**
+ * The result of the scan of an image: the depth reached in the cascade by every window, and the resulting score.
+ *
+ * It is what makes incremental rescoring possible: an image which only differs from a scanned one in a small region
+ * only needs the windows overlapping that region to be evaluated again (see Detector.rescan). Results are never modified
+ * once built, so they can be shared.
+ */
+public class ScanResult {
+	/** Depth of a window which was skipped by Canny pruning. */
+	static final byte PRUNED = -1;
+
+	final ScanPlan plan;
+	/** Depth of each window, in the plan's order, or PRUNED. */
+	final byte[] depths;
+	/** Sum of the depths of all windows. */
+	final long total;
+	/** Number of windows on which the cascade was run to build this result. */
+	final int evaluated;
+	private final int nbStages;
+
+	ScanResult(ScanPlan plan, byte[] depths, long total, int evaluated, int nbStages) {
+		this.plan = plan;
+		this.depths = depths;
+		this.total = total;
+		this.evaluated = evaluated;
+		this.nbStages = nbStages;
+	}
+
+	/**
+	 * @return The fitness score: the sum over all windows of the fraction of the stages passed by the window.
+	 */
+	public float getScore() {
+		return (float) ((double) total / nbStages);
+	}
+
+	/**
+	 * @return The number of windows of the scan.
+	 */
+	public int getWindowCount() {
+		return depths.length;
+	}
+
+	/**
+	 * @return The number of windows which were not skipped by Canny pruning: those which can add to the score.
+	 */
+	public int getUnprunedCount() {
+		int count = 0;
+		for (byte d : depths)
+			if (d != PRUNED)
+				count++;
+		return count;
+	}
+
+	/**
+	 * @return The number of windows on which the cascade was actually run to get this result. Lower than the number of
+	 *         windows when the result was updated from another one, or when windows were pruned.
+	 */
+	public int getEvaluatedCount() {
+		return evaluated;
+	}
+}
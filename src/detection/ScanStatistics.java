@@ -0,0 +1,170 @@
+package detection;
+
+import java.util.Arrays;
+
+/**
+ * A snapshot of the scan counters of a detector, summed over its scoring threads: where the windows are, where they are
+ * rejected, and where the time goes. See DetectorConfig.withInstrumentation.
+ *
+ * The counters are read while the threads may still be updating them, so a snapshot taken during a scan is approximate.
+ */
+public final class ScanStatistics {
+	private final DetectorConfig config;
+	private final long images;
+	private final long[] windows;
+	private final long[] pruned;
+	private final long[] depths;
+	private final long cached;
+	private final long trees;
+	private final long loadNanos, cannyNanos, hashNanos, scanNanos;
+
+	ScanStatistics(DetectorConfig config, int nbStages, Iterable<ScanCounters> counters) {
+		this.config = config;
+		long images = 0, cached = 0, trees = 0, loadNanos = 0, cannyNanos = 0, hashNanos = 0, scanNanos = 0;
+		long[] windows = new long[0], pruned = new long[0];
+		long[] depths = new long[nbStages + 1];
+		for (ScanCounters c : counters) {
+			images += c.images;
+			cached += c.cached;
+			trees += c.trees;
+			loadNanos += c.loadNanos;
+			cannyNanos += c.cannyNanos;
+			hashNanos += c.hashNanos;
+			scanNanos += c.scanNanos;
+			long[] w = c.windows, p = c.pruned;
+			if (w.length > windows.length) {
+				windows = Arrays.copyOf(windows, w.length);
+				pruned = Arrays.copyOf(pruned, w.length);
+			}
+			for (int k = 0; k < w.length && k < p.length; k++) {
+				windows[k] += w[k];
+				pruned[k] += p[k];
+			}
+			for (int s = 0; s < depths.length; s++)
+				depths[s] += c.depths[s];
+		}
+		this.images = images;
+		this.windows = windows;
+		this.pruned = pruned;
+		this.depths = depths;
+		this.cached = cached;
+		this.trees = trees;
+		this.loadNanos = loadNanos;
+		this.cannyNanos = cannyNanos;
+		this.hashNanos = hashNanos;
+		this.scanNanos = scanNanos;
+	}
+
+	/**
+	 * @return The number of images scanned.
+	 */
+	public long getImages() {
+		return images;
+	}
+
+	/**
+	 * @return The number of scales at which windows were counted.
+	 */
+	public int getLevelCount() {
+		return windows.length;
+	}
+
+	/**
+	 * @param level The index of the scale, from 0 for the base scale.
+	 * @return The number of windows visited at this scale, pruned or not.
+	 */
+	public long getWindows(int level) {
+		return windows[level];
+	}
+
+	/**
+	 * @param level The index of the scale, from 0 for the base scale.
+	 * @return The number of windows skipped by Canny pruning at this scale.
+	 */
+	public long getPruned(int level) {
+		return pruned[level];
+	}
+
+	/**
+	 * @param stage A stage of the cascade.
+	 * @return The number of windows rejected by this stage.
+	 */
+	public long getRejections(int stage) {
+		return depths[stage];
+	}
+
+	/**
+	 * @return The number of windows which passed all the stages.
+	 */
+	public long getDetections() {
+		return depths[depths.length - 1];
+	}
+
+	/**
+	 * @return The number of windows whose depth was found in the window cache.
+	 */
+	public long getCached() {
+		return cached;
+	}
+
+	/**
+	 * @return The number of trees evaluated; for cascades of stumps, the number of features evaluated.
+	 */
+	public long getTreesEvaluated() {
+		return trees;
+	}
+
+	/**
+	 * @return The time spent computing the grayscale and integral images, in nanoseconds.
+	 */
+	public long getLoadNanos() {
+		return loadNanos;
+	}
+
+	/**
+	 * @return The time spent computing the Canny integral images, in nanoseconds.
+	 */
+	public long getCannyNanos() {
+		return cannyNanos;
+	}
+
+	/**
+	 * @return The time spent computing the hashes for the window cache, in nanoseconds.
+	 */
+	public long getHashNanos() {
+		return hashNanos;
+	}
+
+	/**
+	 * @return The time spent running the cascade on the windows, in nanoseconds.
+	 */
+	public long getScanNanos() {
+		return scanNanos;
+	}
+
+	/**
+	 * @return A multi-line report of the counters.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		long total = 0, totalPruned = 0;
+		for (int k = 0; k < windows.length; k++) {
+			total += windows[k];
+			totalPruned += pruned[k];
+		}
+		b.append(String.format("%d images, %d windows (%d pruned by Canny, %d from the cache), %d trees evaluated%n",
+				images, total, totalPruned, cached, trees));
+		b.append(String.format("time: load %.1f ms, canny %.1f ms, hash %.1f ms, scan %.1f ms%n", loadNanos / 1e6,
+				cannyNanos / 1e6, hashNanos / 1e6, scanNanos / 1e6));
+		b.append("windows by scale:");
+		float scale = config.getBaseScale();
+		for (int k = 0; k < windows.length; k++, scale *= config.getScaleInc())
+			b.append(String.format(" %.2f:%d/%d", scale, windows[k] - pruned[k], windows[k]));
+		b.append(String.format("%nrejections by stage:"));
+		for (int s = 0; s < depths.length - 1; s++)
+			b.append(' ').append(depths[s]);
+		b.append(String.format("%npassed all stages: %d", getDetections()));
+		return b.toString();
+	}
+}
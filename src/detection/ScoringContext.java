@@ -0,0 +1,300 @@
+package detection;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * The scratch buffers needed to score one image: grayscale values, integral and squared integral images, and the Canny
+ * buffers. All of them are flat, row-major arrays: pixel (i,j) is at index j*width+i.
+ *
+ * A context is reused from one image to the next, and only reallocated when the image size changes, so scoring images of
+ * the same size does not allocate. A context is not thread-safe: the Detector keeps one per thread.
+ */
+class ScoringContext {
+	int width;
+	int height;
+
+	/** Grayscale value of each pixel. */
+	int[] gray;
+	/** Integral image and squared integral image. */
+	int[] grayImage;
+	int[] squares;
+	/** Integral image of the edges, and the buffers used to compute it. */
+	int[] canny;
+	int[] blur;
+	int[] cannyRows;
+	/** Integral image of the pixel hashes, see computeHash(). */
+	long[] hashImage;
+
+	/* Reading buffers. */
+	private int[] row;
+	private int[] lut;
+	private ColorModel lutModel;
+	/* Inverse powers of the hash bases, by column and by row. */
+	private long[] invPowX;
+	private long[] invPowY;
+
+	/* Bases of the polynomial hash of the pixels. Both are odd, hence invertible modulo 2^64. */
+	private static final long HASH_X = 0x9E3779B97F4A7C15L;
+	private static final long HASH_Y = 0xC2B2AE3D27D4EB4FL;
+	/** Random 64 bit value of each gray level, hashed instead of the level itself. */
+	private static final long[] PIXEL_HASH = new long[256];
+	static {
+		long seed = 0x2545F4914F6CDD1DL;
+		for (int v = 0; v < 256; v++) {
+			/* SplitMix64 */
+			long z = (seed += 0x9E3779B97F4A7C15L);
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			PIXEL_HASH[v] = z ^ (z >>> 31);
+		}
+	}
+
+	/**
+	 * Makes sure that the buffers can hold an image of the given size.
+	 */
+	void ensureSize(int width, int height) {
+		if (this.width == width && this.height == height)
+			return;
+		this.width = width;
+		this.height = height;
+		int n = width * height;
+		gray = new int[n];
+		grayImage = new int[n];
+		squares = new int[n];
+		canny = new int[n];
+		blur = new int[n];
+		cannyRows = new int[3 * width];
+		hashImage = null;
+		invPowX = null;
+		invPowY = null;
+	}
+
+	/**
+	 * Computes the grayscale image, the integral image and the squared integral image of an image.
+	 *
+	 * The rendered canvases are TYPE_3BYTE_BGR, so for this type (and for TYPE_BYTE_GRAY and TYPE_INT_RGB) the pixels are
+	 * read straight from the raster's data buffer. Any other image goes through getRGB. Either way, the grayscale value is
+	 * (30*red+59*green+11*blue)/100 of the colour getRGB would return, and each row is integrated as soon as it is read.
+	 */
+	void load(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		ensureSize(width, height);
+
+		boolean fast;
+		switch (image.getType()) {
+		case BufferedImage.TYPE_3BYTE_BGR:
+			fast = loadInterleaved(image);
+			break;
+		case BufferedImage.TYPE_BYTE_GRAY:
+			fast = loadGray(image);
+			break;
+		case BufferedImage.TYPE_INT_RGB:
+			fast = loadPacked(image);
+			break;
+		default:
+			fast = false;
+		}
+		if (!fast)
+			loadGeneric(image);
+	}
+
+	/** Reads the pixels through getRGB, one row at a time. */
+	private void loadGeneric(BufferedImage image) {
+		int[] row = rowBuffer();
+		for (int j = 0; j < height; j++) {
+			image.getRGB(0, j, width, 1, row, 0, width);
+			int k = j * width;
+			for (int i = 0; i < width; i++)
+				gray[k + i] = luminance(row[i]);
+			integrateRow(j);
+		}
+	}
+
+	/** Reads the pixels of a 3 byte RGB interleaved raster. */
+	private boolean loadInterleaved(BufferedImage image) {
+		WritableRaster raster = image.getRaster();
+		if (!(raster.getDataBuffer() instanceof DataBufferByte) || !(raster.getSampleModel() instanceof ComponentSampleModel))
+			return false;
+		ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+		if (sm.getNumBands() != 3 || raster.getDataBuffer().getNumBanks() != 1)
+			return false;
+		byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+		int[] bandOffsets = sm.getBandOffsets();
+		int ro = bandOffsets[0], go = bandOffsets[1], bo = bandOffsets[2];
+		int pixelStride = sm.getPixelStride();
+		int origin = origin(raster, sm);
+		for (int j = 0; j < height; j++) {
+			int k = j * width;
+			int p = origin + j * sm.getScanlineStride();
+			for (int i = 0; i < width; i++, p += pixelStride) {
+				int red = data[p + ro] & 0xff;
+				int green = data[p + go] & 0xff;
+				int blue = data[p + bo] & 0xff;
+				gray[k + i] = (30 * red + 59 * green + 11 * blue) / 100;
+			}
+			integrateRow(j);
+		}
+		return true;
+	}
+
+	/** Reads the pixels of a one byte gray raster, converted through the colour model like getRGB would. */
+	private boolean loadGray(BufferedImage image) {
+		WritableRaster raster = image.getRaster();
+		if (!(raster.getDataBuffer() instanceof DataBufferByte) || !(raster.getSampleModel() instanceof ComponentSampleModel))
+			return false;
+		ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+		if (sm.getNumBands() != 1 || raster.getDataBuffer().getNumBanks() != 1)
+			return false;
+		int[] lut = grayLut(image.getColorModel());
+		byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+		int pixelStride = sm.getPixelStride();
+		int origin = origin(raster, sm) + sm.getBandOffsets()[0];
+		for (int j = 0; j < height; j++) {
+			int k = j * width;
+			int p = origin + j * sm.getScanlineStride();
+			for (int i = 0; i < width; i++, p += pixelStride)
+				gray[k + i] = lut[data[p] & 0xff];
+			integrateRow(j);
+		}
+		return true;
+	}
+
+	/** Reads the pixels of a packed int RGB raster. */
+	private boolean loadPacked(BufferedImage image) {
+		WritableRaster raster = image.getRaster();
+		if (!(raster.getDataBuffer() instanceof DataBufferInt) || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel))
+			return false;
+		SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+		int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+		int origin = raster.getDataBuffer().getOffset()
+				+ sm.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+		for (int j = 0; j < height; j++) {
+			int k = j * width;
+			int p = origin + j * sm.getScanlineStride();
+			for (int i = 0; i < width; i++)
+				gray[k + i] = luminance(data[p + i]);
+			integrateRow(j);
+		}
+		return true;
+	}
+
+	/** Index in the data buffer of pixel (0,0), before the band offsets are added. */
+	private static int origin(WritableRaster raster, ComponentSampleModel sm) {
+		return raster.getDataBuffer().getOffset()
+				- raster.getSampleModelTranslateY() * sm.getScanlineStride()
+				- raster.getSampleModelTranslateX() * sm.getPixelStride();
+	}
+
+	/** Grayscale value of an ARGB colour. */
+	private static int luminance(int c) {
+		int red = (c & 0x00ff0000) >> 16;
+		int green = (c & 0x0000ff00) >> 8;
+		int blue = c & 0x000000ff;
+		return (30 * red + 59 * green + 11 * blue) / 100;
+	}
+
+	/** Grayscale value of each byte of a gray image, kept as long as the colour model does not change. */
+	private int[] grayLut(ColorModel cm) {
+		if (lut == null || !cm.equals(lutModel)) {
+			int[] l = new int[256];
+			for (int v = 0; v < 256; v++)
+				l[v] = luminance(cm.getRGB(new byte[] { (byte) v }));
+			lut = l;
+			lutModel = cm;
+		}
+		return lut;
+	}
+
+	private int[] rowBuffer() {
+		if (row == null || row.length < width)
+			row = new int[width];
+		return row;
+	}
+
+	/** Adds row j of the grayscale image to the integral and squared integral images. */
+	private void integrateRow(int j) {
+		int k = j * width;
+		int above = k - width;
+		int col = 0;
+		int col2 = 0;
+		for (int i = 0; i < width; i++, k++, above++) {
+			int value = gray[k];
+			col += value;
+			col2 += value * value;
+			grayImage[k] = (j > 0 ? grayImage[above] : 0) + col;
+			squares[k] = (j > 0 ? squares[above] : 0) + col2;
+		}
+	}
+
+	/**
+	 * Computes the integral image of the pixel hashes into hashImage.
+	 *
+	 * Pixel (x,y) of gray level v is hashed as PIXEL_HASH[v]*HASH_X^x*HASH_Y^y (modulo 2^64), so the sum over a window,
+	 * read from the integral image like any other sum, only has to be divided by HASH_X^x0*HASH_Y^y0 to no longer depend
+	 * on the position (x0,y0) of the window: see windowHash(). Hashing random values rather than the levels themselves
+	 * avoids the structured collisions of polynomial hashes modulo a power of 2.
+	 */
+	void computeHash() {
+		if (hashImage == null) {
+			hashImage = new long[width * height];
+			invPowX = powers(inverse(HASH_X), width);
+			invPowY = powers(inverse(HASH_Y), height);
+		}
+		long[] h = hashImage;
+		long py = 1;
+		for (int j = 0, k = 0; j < height; j++, py *= HASH_Y) {
+			long row = 0;
+			long p = py;
+			for (int i = 0; i < width; i++, k++, p *= HASH_X) {
+				row += PIXEL_HASH[gray[k]] * p;
+				h[k] = (j > 0 ? h[k - width] : 0) + row;
+			}
+		}
+	}
+
+	/**
+	 * Hash of the pixels of a window, which only depends on their values: two windows of the same size holding the same
+	 * pixels have the same hash, wherever they are. computeHash() must have been called.
+	 * @param x The column of the top-left corner of the window.
+	 * @param y The row of the top-left corner of the window.
+	 * @param w The width of the window.
+	 * @param h The height of the window.
+	 */
+	long windowHash(int x, int y, int w, int h) {
+		int base = y * width + x;
+		int ho = h * width;
+		long sum = hashImage[base + ho + w] + hashImage[base] - hashImage[base + ho] - hashImage[base + w];
+		return sum * invPowX[x] * invPowY[y];
+	}
+
+	/** The inverse of an odd number modulo 2^64, by Newton's iteration: each step doubles the number of correct bits. */
+	private static long inverse(long a) {
+		long x = a; /* correct on 3 bits */
+		for (int i = 0; i < 5; i++)
+			x *= 2 - a * x;
+		return x;
+	}
+
+	/** a^0 .. a^(n-1), modulo 2^64. */
+	private static long[] powers(long a, int n) {
+		long[] p = new long[n];
+		long v = 1;
+		for (int i = 0; i < n; i++, v *= a)
+			p[i] = v;
+		return p;
+	}
+
+	/**
+	 * Computes the integral Canny image of the loaded image into canny.
+	 */
+	void computeCanny() {
+		CannyPruner.getIntegralCanny(gray, width, height, blur, cannyRows, canny);
+	}
+}
@@ -0,0 +1,132 @@
+package detection;
+
+/**
+ * Remembers the depth reached in the cascade by windows, by the content of the window.
+ *
+ * The depth of a window only depends on its pixels, on its scale and on how the features are evaluated: in floating
+ * point, from the tables or compiled, which give the same depths, or in fixed point, which may not (see
+ * DetectorConfig.withFixedPoint). So two windows holding the same pixels at the same scale, in the same image or in two
+ * images, reach the same depth when they are evaluated the same way. The key of a window is a 64 bit hash of its pixels
+ * (see ScoringContext.windowHash) mixed with its scale and with the evaluation mode. The other scan parameters do not
+ * change the depth of a window; windows skipped by Canny pruning are not stored.
+ *
+ * The table is a primitive open-addressing table: a key may only be stored in the PROBES slots following its home slot,
+ * so that a lookup never reads more than PROBES slots and entries can be replaced without breaking probe chains. When
+ * these slots are all taken, one of them is evicted with the clock (second chance) algorithm: each entry has a reference
+ * bit, set when it is read, and the entries whose bit is set are spared once.
+ *
+ * A cache is not thread-safe: the Detector keeps one per thread.
+ */
+class WindowCache {
+	/** Returned by get() when the key is not in the cache. */
+	static final int MISS = -1;
+
+	/** Number of slots where a key may be stored. */
+	private static final int PROBES = 8;
+	/** Marks an empty slot. Keys equal to it are stored as 1. */
+	private static final long EMPTY = 0;
+
+	private final long[] keys;
+	private final byte[] depths;
+	private final boolean[] referenced;
+	private final int mask;
+	/** Where the clock starts in the next group of slots to evict from. */
+	private int hand;
+
+	int entries;
+	long hits;
+	long misses;
+	long evictions;
+
+	/**
+	 * @param capacity The number of entries, rounded up to a power of 2.
+	 */
+	WindowCache(int capacity) {
+		int n = Integer.highestOneBit(Math.max(capacity, PROBES) - 1) << 1;
+		keys = new long[n];
+		depths = new byte[n];
+		referenced = new boolean[n];
+		mask = n - 1;
+	}
+
+	/**
+	 * Computes the key of a window.
+	 * @param hash The hash of the pixels of the window.
+	 * @param level The scale of the window, and how it is evaluated.
+	 */
+	static long key(long hash, ScaledCascade level) {
+		long k = hash ^ (Float.floatToIntBits(level.scale) * 0x9E3779B97F4A7C15L);
+		if (level.isFixedPoint())
+			k ^= 0xD6E8FEB86659FD93L;
+		/* Spread the bits (MurmurHash3's finalizer), since the home slot is taken from the low bits. */
+		k = (k ^ (k >>> 33)) * 0xFF51AFD7ED558CCDL;
+		k = (k ^ (k >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		k = k ^ (k >>> 33);
+		return k == EMPTY ? 1 : k;
+	}
+
+	/**
+	 * @return The depth reached by the window with the given key, or MISS.
+	 */
+	int get(long key) {
+		int home = (int) key;
+		for (int i = 0; i < PROBES; i++) {
+			int slot = (home + i) & mask;
+			if (keys[slot] == key) {
+				referenced[slot] = true;
+				hits++;
+				return depths[slot];
+			}
+		}
+		misses++;
+		return MISS;
+	}
+
+	/**
+	 * Stores the depth reached by a window, which was not found by get().
+	 */
+	void put(long key, int depth) {
+		int home = (int) key;
+		for (int i = 0; i < PROBES; i++) {
+			int slot = (home + i) & mask;
+			if (keys[slot] == EMPTY) {
+				store(slot, key, depth);
+				entries++;
+				return;
+			}
+		}
+		/* Clock: the first entry not read since the hand last went over it is replaced. After one turn every bit is
+		 * cleared, so the second turn always finds one. */
+		for (int i = 0; i < 2 * PROBES; i++) {
+			int slot = (home + (hand + i) % PROBES) & mask;
+			if (referenced[slot]) {
+				referenced[slot] = false;
+			} else {
+				store(slot, key, depth);
+				hand = (hand + i + 1) % PROBES;
+				evictions++;
+				return;
+			}
+		}
+	}
+
+	private void store(int slot, long key, int depth) {
+		keys[slot] = key;
+		depths[slot] = (byte) depth;
+		referenced[slot] = false;
+	}
+
+	/**
+	 * @return The number of entries the cache can hold.
+	 */
+	int getCapacity() {
+		return keys.length;
+	}
+
+	/**
+	 * @return The memory used by the table, in bytes.
+	 */
+	long getMemory() {
+		return (long) keys.length * (8 + 1 + 1);
+	}
+}
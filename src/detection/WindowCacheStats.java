@@ -0,0 +1,88 @@
+package detection;
+
+/**
+ * A snapshot of the use of the window caches of a detector, summed over the scoring threads. See
+ * DetectorConfig.withWindowCache.
+ */
+public final class WindowCacheStats {
+	private final int caches;
+	private final long capacity;
+	private final long entries;
+	private final long hits;
+	private final long misses;
+	private final long evictions;
+	private final long memory;
+
+	WindowCacheStats(int caches, long capacity, long entries, long hits, long misses, long evictions, long memory) {
+		this.caches = caches;
+		this.capacity = capacity;
+		this.entries = entries;
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.memory = memory;
+	}
+
+	/**
+	 * @return The number of caches, i.e. of threads which scored images with the cache on.
+	 */
+	public int getCacheCount() {
+		return caches;
+	}
+
+	/**
+	 * @return The number of entries the caches can hold.
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return The number of entries held.
+	 */
+	public long getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return The number of windows whose depth was found in a cache.
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of windows looked up and not found, on which the cascade was run.
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return The number of entries replaced by others.
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return The fraction of the lookups which were hits, 0 if there was none.
+	 */
+	public double getHitRatio() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * @return The memory used by the caches, in bytes.
+	 */
+	public long getMemory() {
+		return memory;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d hits, %d misses (%.1f%% hit ratio), %d/%d entries, %d evictions, %d KB in %d cache(s)",
+				hits, misses, 100 * getHitRatio(), entries, capacity, evictions, memory / 1024, caches);
+	}
+}